@@ -1,6 +1,6 @@
 package classifiers;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.stream.IntStream;
 
 import dataset.Dataset;
 import dataset.Image;
@@ -15,29 +15,83 @@ public abstract class AbstractClassifier {
 	
 	 * accuracy is the same for all of them, so it is implemented here.
 	 *  
+	 * If the training dataset was normalized ( Dataset.normalize ), the classifier works in the normalized space:
+	 * train() keeps the normalizer of the dataset and predict(Image) transforms the query with it.
+	 * predict(double[], int) expects a vector that is already in that space ( i.e a row of a dataset normalized the same way ).
 	 */
 	
+	protected Normalizer normalizer; // of the training dataset, null if it holds raw values
+	private final ThreadLocal<double[]> query_buffer = ThreadLocal.withInitial(() -> new double[0]);
+	
 	public abstract boolean train(Dataset training_dataset);
 	
 	public abstract int predict(Image img);
 	
+	// same as above on a raw feature vector, starting at x_off in x ( i.e a row of a feature matrix )
+	public abstract int predict(double[] x, int x_off);
+	
 	public abstract void reset(); // used mainly when performing k-cross-val
 	
 	@Override
 	public abstract String toString();
 	
+	public int[] predict_batch(Dataset queries) {
+		// predictions of all the rows of queries, see predict_batch(double[], int, int)
+		int size = queries.size(), dim = queries.get_dim();
+		double[] x = new double[size * dim];
+		// the rows can be used as they are if they're in the training space, otherwise go through the images ( raw values )
+		boolean same_space = queries.get_normalizer() == normalizer;
+		
+		for (int row = 0; row < size; row++) {
+			if (same_space)
+				System.arraycopy(queries.get_features(), queries.get_offset(row), x, row * dim, dim);
+			else
+				to_training_space(queries.get_image(row).get_values(), 0, x, row * dim, dim);
+		}
+		
+		return predict_batch(x, size, dim);
+	}
+	
+	public int[] predict_batch(double[][] queries) {
+		// predictions of raw vectors ( like predict(Image) )
+		if (queries.length == 0)
+			return new int[0];
+		
+		int dim = queries[0].length;
+		double[] x = new double[queries.length * dim];
+		
+		for (int i = 0; i < queries.length; i++) {
+			assert queries[i].length == dim;
+			to_training_space(queries[i], 0, x, i * dim, dim);
+		}
+		
+		return predict_batch(x, queries.length, dim);
+	}
+	
+	protected int[] predict_batch(double[] x, int n_rows, int dim) {
+		/*
+		 * predictions of the n_rows rows of x ( row i starts at i * dim ), already in the training space.
+		 * One predict() per row here, the classifiers that can share the work between the queries override it.
+		 */
+		int[] predicted = new int[n_rows];
+		
+		for (int row = 0; row < n_rows; row++)
+			predicted[row] = predict(x, row * dim);
+		
+		return predicted;
+	}
+	
 	public double accuracy(Dataset test_dataset) {
 		int counter = 0, size = test_dataset.size();
+		int[] predicted_labels = predict_batch(test_dataset);
 		
-		for(Entry<Image, Integer> entry : test_dataset.entrySet()) {
-			int predicted_label = predict(entry.getKey());
-			
-			if ( predicted_label == entry.getValue())
+		for(int row = 0; row < size; row++) {
+			if ( predicted_labels[row] == test_dataset.get_label(row))
 				counter++;
 //			else {
-//				System.err.println(entry.getKey());
-//				System.err.println("Classifier predicted: " + predicted_label 
-//						+ "The real label was " + entry.getKey().get_label());
+//				System.err.println(test_dataset.get_image(row));
+//				System.err.println("Classifier predicted: " + predicted_labels[row] 
+//						+ "The real label was " + test_dataset.get_label(row));
 //			}
 		}
 		
@@ -45,16 +99,101 @@ public abstract class AbstractClassifier {
 		return (double) counter / size;
 	}
 	
+	public double accuracy(StreamingDataset test_dataset) {
+		// same as above, but the test images are read chunk by chunk ( bounded memory ), one batch per chunk
+		int counter = 0, size = 0, dim = test_dataset.get_dim();
+		
+		for (StreamingDataset.Chunk chunk : test_dataset) {
+			double[] x = chunk.get_features(); // the chunk rows are contiguous ( row i at i * dim )
+				
+			if (normalizer != null) {
+				x = new double[chunk.size() * dim];
+				
+				for (int row = 0; row < chunk.size(); row++)
+					to_training_space(chunk.get_features(), chunk.get_offset(row), x, row * dim, dim);
+			}
+			
+			int[] predicted_labels = predict_batch(x, chunk.size(), dim);
+			
+			for (int row = 0; row < chunk.size(); row++)
+				if (predicted_labels[row] == chunk.get_label(row))
+					counter++;
+			
+			size += chunk.size();
+		}
+		
+		return (double) counter / size;
+	}
+	
+	private void to_training_space(double[] x, int x_off, double[] out, int out_off, int dim) {
+		// raw vector -> training space, into out
+		if (normalizer == null)
+			System.arraycopy(x, x_off, out, out_off, dim);
+		else
+			normalizer.transform(x, x_off, out, out_off);
+	}
+	
+	private static double term(double diff, int p) {
+		// |diff|^p
+		if (p == 1)
+			return Math.abs(diff);
+		else if (p == 2)
+			return diff * diff;
+		
+		return Math.pow(Math.abs(diff), p);
+	}
+	
+	static int[] variance_order(Dataset dataset) {
+		// attributes by decreasing variance over the dataset, the order of DistanceMetric.abandons
+		double[] variances = new double[dataset.get_dim()];
+		for (int i = 0; i < variances.length; i++)
+			variances[i] = dataset.get_variance(i);
+		
+		return decreasing_order(variances);
+	}
+	
+	static int[] decreasing_order(double[] scores) {
+		return IntStream.range(0, scores.length).boxed()
+						.sorted((i, j) -> Double.compare(scores[j], scores[i]))
+						.mapToInt(Integer::intValue)
+						.toArray();
+	}
+	
+	protected double[] query_values(Image img) {
+		return normalizer == null ? img.get_values() : query_values(img.get_values(), 0);
+	}
+	
+	protected double[] query_values(double[] x, int x_off) {
+		// the raw query in the training space, in a per-thread buffer ( valid until the next call on this thread )
+		double[] buffer = query_buffer.get();
+		
+		if (buffer.length != normalizer.get_dim()) {
+			buffer = new double[normalizer.get_dim()];
+			query_buffer.set(buffer);
+		}
+		
+		normalizer.transform(x, x_off, buffer, 0);
+		
+		return buffer;
+	}
+	
 	public double dist(double[] x, double[] y, int p) {
 		// generally for debugging purposes
+		assert x.length == y.length;
+		
+		return dist(x, 0, y, 0, x.length, p);
+	}
+	
+	public double dist(double[] x, int x_off, double[] y, int y_off, int dim, int p) {
+		// distance between two rows of (possibly bigger) arrays, i.e the rows of Dataset.get_features()
 		assert p > 0;
 		
 		if (p == 1)
-			return manhattan_dist(x, y);
+			return manhattan_dist(x, x_off, y, y_off, dim);
 		else if (p == 2)
-			return euclidean_dist(x, y);
+			return euclidean_dist(x, x_off, y, y_off, dim);
 		
-		return minkowski_dist(x, y, p);
+		return minkowski_dist(x, x_off, y, y_off, dim, p);
 	}
 	
 	// Overloading of the method above to make things simpler
@@ -70,44 +209,132 @@ public abstract class AbstractClassifier {
 	
 	public double dist(Representation r_x, Representation r_y, int p) {	
 		// will be used in production
-		return dist(r_x.get_data(), r_y.get_data(), p);
+		return dist(r_x.get_values(), r_y.get_values(), p);
 	}
 	
 	public double dist(Image img_x, Image img_y, int p) {
 		// will be used in production
-		return dist(img_x.get_representation(), img_y.get_representation(), p);
+		return dist(img_x.get_values(), img_y.get_values(), p);
 	}
 	
 	public double euclidean_dist(double[] x, double[] y) {
 		assert x.length == y.length;
 		
+		return euclidean_dist(x, 0, y, 0, x.length);
+	}
+	
+	public double euclidean_dist(double[] x, int x_off, double[] y, int y_off, int dim) {
+		return Math.sqrt(squared_euclidean_dist(x, x_off, y, y_off, dim));
+	}
+	
+	public double squared_euclidean_dist(double[] x, int x_off, double[] y, int y_off, int dim) {
+		/*
+		 * Same ranking as euclidean_dist without the root.
+		 * 
+		 * The kernels are kept as plain loops over the attributes on purpose: the JIT vectorizes the subtractions
+		 * and multiplications of such loops by itself ( SIMD ), manually unrolled loops with several sums don't
+		 * get that and were slower. diff * diff and not Math.pow(diff, 2), which isn't always turned into a multiplication.
+		 */
 		double sum = 0;
 		
-		for (int i = 0; i < x.length; i++)
-			sum += Math.pow((x[i] - y[i]), 2);
+		for (int i = 0; i < dim; i++) {
+			double diff = x[x_off + i] - y[y_off + i];
+			sum += diff * diff;
+		}
 		
-		return Math.sqrt(sum);
+		return sum;
 	}
 	
 	public double manhattan_dist(double[] x , double[] y) {
 		assert x.length > 0 && x.length == y.length;
 		
+		return manhattan_dist(x, 0, y, 0, x.length);
+	}
+	
+	public double manhattan_dist(double[] x, int x_off, double[] y, int y_off, int dim) {
 		double sum = 0;
 		
-		for (int i = 0; i < x.length; i++)
-			sum += Math.abs((x[i] - y[i]));
+		for (int i = 0; i < dim; i++)
+			sum += Math.abs((x[x_off + i] - y[y_off + i]));
 		
 		return sum;
 	}
 	
 	public double minkowski_dist(double[] x, double[] y, int p) {
-		assert p > 0;
 		assert x.length > 0 && x.length == y.length;
 		
+		return minkowski_dist(x, 0, y, 0, x.length, p);
+	}
+	
+	public double minkowski_dist(double[] x, int x_off, double[] y, int y_off, int dim, int p) {
+		assert p > 0;
+		
+		double sum = 0;
+		
+		// abs: with an odd p the negative differences would cancel the positive ones ( and give NaN roots )
+		for (int i = 0; i < dim; i++)
+			sum += Math.pow(Math.abs(x[x_off + i] - y[y_off + i]), p);
+		
+		return Math.pow(sum, 1.0/p);
+	}
+	
+	// Reduced precision versions, same formulas over float32 rows ( FloatFeatures ) and int8 quantized rows ( QuantizedFeatures )
+	
+	public double dist(double[] x, int x_off, float[] y, int y_off, int dim, int p) {
+		assert p > 0;
+		
+		if (p == 2)
+			return Math.sqrt(squared_euclidean_dist(x, x_off, y, y_off, dim));
+		
+		double sum = 0;
+		
+		if (p == 1) {
+			for (int i = 0; i < dim; i++)
+				sum += Math.abs(x[x_off + i] - y[y_off + i]);
+			
+			return sum;
+		}
+		
+		for (int i = 0; i < dim; i++)
+			sum += Math.pow(Math.abs(x[x_off + i] - y[y_off + i]), p);
+		
+		return root(sum, p);
+	}
+	
+	public double squared_euclidean_dist(double[] x, int x_off, float[] y, int y_off, int dim) {
 		double sum = 0;
 		
-		for (int i = 0; i < x.length; i++)
-			sum += Math.pow((x[i] - y[i]), p);
+		for (int i = 0; i < dim; i++) {
+			double diff = x[x_off + i] - y[y_off + i];
+			sum += diff * diff;
+		}
+		
+		return sum;
+	}
+	
+	public double dist(double[] x, int x_off, QuantizedFeatures y, int row, int p) {
+		// asymmetric distance: the query is compared to the decoded row, the query itself is not quantized
+		assert p > 0;
+		
+		byte[] codes = y.get_codes();
+		double[] mins = y.get_mins(), scales = y.get_scales();
+		int dim = y.get_dim(), y_off = y.get_offset(row);
+		
+		double sum = 0, diff;
+		
+		for (int i = 0; i < dim; i++) {
+			diff = x[x_off + i] - (mins[i] + (codes[y_off + i] & 0xFF) * scales[i]);
+			sum += term(diff, p);
+		}
+		
+		return root(sum, p);
+	}
+	
+	static double root(double sum, int p) {
+		if (p == 1)
+			return sum;
+		else if (p == 2)
+			return Math.sqrt(sum);
 		
 		return Math.pow(sum, 1.0/p);
 	}
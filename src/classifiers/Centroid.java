@@ -1,6 +1,7 @@
 package classifiers;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Centroid {
@@ -9,17 +10,25 @@ public class Centroid {
 	 */
 	
 	private int label; // the dominant label of the cluster where this centroid exists
-	private List<Double> coords; // coordinates of this centroid
+	private double[] coords; // coordinates of this centroid
 	
 	@SuppressWarnings("unused")
 	private Centroid() {} // Centroid must have coords, so no default construct for the user
 
 	public Centroid(List<Double> coords) {
+		this(coords.stream().mapToDouble(Double::doubleValue).toArray());
+	}
+	
+	public Centroid(List<Double> coords, int label) {
+		this(coords.stream().mapToDouble(Double::doubleValue).toArray(), label);
+	}
+	
+	public Centroid(double[] coords) {
 		this.label = -100;
 		this.coords = coords;
 	}
 	
-	public Centroid(List<Double> coords, int label) {
+	public Centroid(double[] coords, int label) {
 		this.coords = coords;
 		this.label = label;
 	}
@@ -33,22 +42,37 @@ public class Centroid {
 	}
 	
 	public List<Double> get_coords() {
+		// read-only boxed view over the coordinates
+		return new AbstractList<Double>() {
+			@Override
+			public Double get(int index) {
+				return coords[index];
+			}
+
+			@Override
+			public int size() {
+				return coords.length;
+			}
+		};
+	}
+	
+	public double[] get_values() {
 		return coords;
 	}
 	
 	public Centroid clone() {
-		Centroid c = new Centroid(new ArrayList<Double>(coords), label);
+		Centroid c = new Centroid(coords.clone(), label);
 		return c;
 	}
 	
 	@Override
 	public String toString() {
-		return " -> label : " + label + " Centroid_coords: " + coords + "\n";
+		return " -> label : " + label + " Centroid_coords: " + Arrays.toString(coords) + "\n";
 	}
 	
 	@Override
 	public int hashCode() {
-		return coords.hashCode();
+		return Arrays.hashCode(coords);
 	}
 	
 	@Override
@@ -61,7 +85,7 @@ public class Centroid {
 		
 		Centroid other = (Centroid) o;
 		
-		return other.coords.equals(this.coords) && other.label == this.label;
+		return Arrays.equals(other.coords, this.coords) && other.label == this.label;
 	} 
 
 }
@@ -0,0 +1,230 @@
+package classifiers;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import dataset.Dataset;
+import dataset.DatasetView;
+import dataset.Image;
+
+public class DistanceCache implements Closeable {
+	/*
+	 * The rank distances ( DistanceMetric.rank_dist ) between every pair of rows of a dataset, computed once, so the
+	 * classifiers trained and tested on subsets of it ( the folds of the cross validation, leave-one-out ) look them
+	 * up instead of computing them again in every iteration:
+	 *
+	 * 		DistanceCache cache = new DistanceCache(dataset, DistanceMetric.L2);
+	 * 		Evaluation.cross_validation(new KnnClassifier(5, cache), dataset, 10);
+	 *
+	 * The distances are symmetric with a null diagonal, so only the lower triangle is kept, as floats ( two rows at
+	 * distances closer than ~1e-7 relative may swap compared to the double distances ):
+	 * 		- in memory: one float[] of n ( n - 1 ) / 2 values, the pair i > j at i ( i - 1 ) / 2 + j
+	 * 		- on disk, when that is bigger than max_memory_bytes: a temporary file of TILE x TILE tiles of the lower
+	 * 		  triangle, read when needed, the last used ones stay in memory ( LRU, within max_memory_bytes )
+	 *
+	 * The rows are the ones of the dataset, the views over it ( DatasetView ) use it too through their parent rows.
+	 * The cache keeps the version of the dataset ( Dataset.get_version() ) it was computed on: once the dataset
+	 * changes ( rows added, removed, normalized, shuffled... ) covers() is false and the classifiers compute again.
+	 */
+	
+	public static final long DEFAULT_MAX_MEMORY_BYTES = 256L << 20;
+	static final int TILE = 128;
+	
+	private final Dataset dataset; // never a view
+	private final DistanceMetric metric;
+	private final int size;
+	private final int version; // dataset.get_version() when the distances were computed, see covers
+	
+	private float[] distances; // null on disk
+	private FileChannel channel;
+	private Map<Integer, float[]> tiles; // tile id -> tile, in access order
+	private int max_tiles;
+	
+	public DistanceCache(Dataset dataset, DistanceMetric metric) throws IOException {
+		this(dataset, metric, DEFAULT_MAX_MEMORY_BYTES);
+	}
+	
+	public DistanceCache(Dataset dataset, DistanceMetric metric, long max_memory_bytes) throws IOException {
+		assert dataset.size() > 1 && max_memory_bytes > 0;
+		
+		this.dataset = dataset instanceof DatasetView ? ((DatasetView) dataset).get_parent() : dataset;
+		this.metric = metric;
+		this.size = this.dataset.size();
+		this.version = this.dataset.get_version();
+		
+		long n_pairs = (long) size * (size - 1) / 2;
+		
+		if (n_pairs * Float.BYTES <= max_memory_bytes && n_pairs <= Integer.MAX_VALUE - 8)
+			build_in_memory((int) n_pairs);
+		else
+			build_on_disk(max_memory_bytes);
+	}
+	
+	private void build_in_memory(int n_pairs) {
+		double[] features = dataset.get_features();
+		int dim = dataset.get_dim();
+		distances = new float[n_pairs];
+		
+		for (int i = 1, pair = 0; i < size; i++)
+			for (int j = 0; j < i; j++)
+				distances[pair++] = (float) metric.rank_dist(features, dataset.get_offset(i), features, dataset.get_offset(j), dim);
+	}
+	
+	private void build_on_disk(long max_memory_bytes) throws IOException {
+		// tile ( ti, tj ), ti >= tj, is the tile_id(ti, tj)-th block of the file, its row i % TILE first
+		double[] features = dataset.get_features();
+		int dim = dataset.get_dim(), n_tiles = (size + TILE - 1) / TILE;
+		Path path = Files.createTempFile("distances", ".bin");
+		
+		channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+		ByteBuffer buffer = ByteBuffer.allocate(TILE * TILE * Float.BYTES);
+		
+		for (int ti = 0; ti < n_tiles; ti++)
+			for (int tj = 0; tj <= ti; tj++) {
+				buffer.clear();
+				
+				for (int i = ti * TILE; i < (ti + 1) * TILE; i++)
+					for (int j = tj * TILE; j < (tj + 1) * TILE; j++)
+						buffer.putFloat(i < size && j < i ? (float) metric.rank_dist(features, dataset.get_offset(i), features, dataset.get_offset(j), dim) : 0);
+				
+				buffer.flip();
+				
+				long position = (long) tile_id(ti, tj) * buffer.capacity();
+				while (buffer.hasRemaining())
+					position += channel.write(buffer, position);
+			}
+		
+		// a scan of one row goes through a whole row of tiles, so at least that many stay in memory
+		max_tiles = (int) Math.max(n_tiles, max_memory_bytes / buffer.capacity());
+		tiles = new LinkedHashMap<Integer, float[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, float[]> eldest) {
+				return size() > max_tiles;
+			}
+		};
+	}
+	
+	private static int tile_id(int ti, int tj) {
+		return ti * (ti + 1) / 2 + tj;
+	}
+	
+	public float get(int i, int j) {
+		// rank distance between the rows i and j of the dataset
+		if (i == j)
+			return 0;
+		
+		if (i < j) {
+			int tmp = i;
+			i = j;
+			j = tmp;
+		}
+		
+		if (distances != null)
+			return distances[(int) ((long) i * (i - 1) / 2 + j)];
+		
+		return get_tile(i / TILE, j / TILE)[(i % TILE) * TILE + j % TILE];
+	}
+	
+	public void get_row(int i, float[] out) {
+		// rank distances of the row i to every row of the dataset, out[j] = get(i, j), with one tile lookup per tile
+		assert out.length >= size;
+		
+		if (distances != null) {
+			// the pairs ( i, j < i ) are contiguous, the pairs ( j > i, i ) are j apart
+			System.arraycopy(distances, (int) ((long) i * (i - 1) / 2), out, 0, i);
+			out[i] = 0;
+			
+			long pair = (long) (i + 1) * i / 2 + i;
+			for (int j = i + 1; j < size; pair += j++)
+				out[j] = distances[(int) pair];
+			
+			return;
+		}
+		
+		int ti = i / TILE, r = i % TILE;
+		
+		for (int tj = 0; tj * TILE < size; tj++) {
+			float[] tile = tj <= ti ? get_tile(ti, tj) : get_tile(tj, ti);
+			
+			for (int j = tj * TILE; j < Math.min(size, (tj + 1) * TILE); j++)
+				out[j] = j < i ? tile[r * TILE + j % TILE] : j > i ? tile[(j % TILE) * TILE + r] : 0;
+		}
+	}
+	
+	private synchronized float[] get_tile(int ti, int tj) {
+		int id = tile_id(ti, tj);
+		float[] tile = tiles.get(id);
+		
+		if (tile == null) {
+			ByteBuffer buffer = ByteBuffer.allocate(TILE * TILE * Float.BYTES);
+			
+			try {
+				long position = (long) id * buffer.capacity();
+				
+				while (buffer.hasRemaining())
+					if (channel.read(buffer, position + buffer.position()) < 0)
+						break;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			
+			buffer.flip();
+			tile = new float[TILE * TILE];
+			buffer.asFloatBuffer().get(tile);
+			tiles.put(id, tile);
+		}
+		
+		return tile;
+	}
+	
+	public boolean covers(Dataset dataset) {
+		// true if the rows of dataset ( or of its parent ) are the ones of the cache, and didn't change since
+		// ( a view normalized on its own has other rows, see DatasetView )
+		Dataset root = dataset instanceof DatasetView ? ((DatasetView) dataset).get_parent() : dataset;
+		
+		return root == this.dataset && root.get_version() == version && dataset.get_features() == root.get_features();
+	}
+	
+	public static int get_root_row(Dataset dataset, int row) {
+		// row of the dataset in the cache ( for a covered dataset )
+		return dataset instanceof DatasetView ? ((DatasetView) dataset).get_parent_row(row) : row;
+	}
+	
+	public int find_row(Image img) {
+		// row of img in the cache, -1 if it's not in the dataset
+		return dataset.find_row(img);
+	}
+	
+	public DistanceMetric get_metric() {
+		return metric;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean is_on_disk() {
+		return distances == null;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		// deletes the file of the tiles
+		if (channel != null)
+			channel.close();
+	}
+	
+	@Override
+	public String toString() {
+		return "Distance cache ( " + metric + ", " + size + " rows" + (is_on_disk() ? ", on disk" : "") + " )";
+	}
+}
@@ -0,0 +1,373 @@
+package classifiers;
+
+public abstract class DistanceMetric {
+	/*
+	 * Distance between two rows of (possibly bigger) arrays, i.e the rows of Dataset.get_features(), as an object
+	 * chosen once ( by the classifier ) instead of an int p checked at every call:
+	 *
+	 * 		KnnClassifier knn = new KnnClassifier(5, DistanceMetric.COSINE);
+	 *
+	 * Each metric is its own final class, so a scan over the rows calls one kernel ( that the JIT can inline ) with no
+	 * branch on the kind of distance inside the loop.
+	 *
+	 * rank_dist is the cheap form of the distance: it orders the pairs the same way as dist, but skips what doesn't
+	 * change the order ( the root of the Minkowski distances ). The classifiers compare rank_dist values between them,
+	 * to_dist and to_rank convert from one form to the other.
+	 *
+	 * The Minkowski metrics ( get_p() > 0 ) are the ones of AbstractClassifier.dist, so they also work with the
+	 * reduced precision storages and the neighbour indexes, the others only with double rows and full scans.
+	 */
+	
+	public static final DistanceMetric L1 = new Manhattan(), L2 = new Euclidean(), L_INF = new Chebyshev(),
+									   COSINE = new Cosine(), CANBERRA = new Canberra();
+	
+	public static DistanceMetric minkowski(int p) {
+		assert p > 0;
+		
+		if (p == 1)
+			return L1;
+		else if (p == 2)
+			return L2;
+		
+		return new Minkowski(p);
+	}
+	
+	public abstract double rank_dist(double[] x, int x_off, double[] y, int y_off, int dim);
+	
+	public abstract double to_dist(double rank);
+	
+	public abstract double to_rank(double dist);
+	
+	public double dist(double[] x, int x_off, double[] y, int y_off, int dim) {
+		return to_dist(rank_dist(x, x_off, y, y_off, dim));
+	}
+	
+	public double dist(double[] x, double[] y) {
+		assert x.length == y.length;
+		
+		return dist(x, 0, y, 0, x.length);
+	}
+	
+	boolean abandons(double[] x, int x_off, double[] y, int y_off, int[] order, double best_rank) {
+		/*
+		 * Early abandoning, in the rank form: true if rank_dist(x, y) >= best_rank for sure, without computing all of it
+		 * ( see AbstractClassifier.variance_order for the order of the attributes ). Only a filter, the candidates that
+		 * are not abandoned still get their exact rank_dist.
+		 *
+		 * The metrics that are a sum over the attributes stop as soon as the partial sum passes best_rank, with a tiny
+		 * margin for the different rounding of the sum in another order. Never abandons by default.
+		 */
+		return false;
+	}
+	
+	public int get_p() {
+		// p of the Minkowski distance, 0 if the metric is not one
+		return 0;
+	}
+	
+	@Override
+	public abstract String toString();
+	
+	private static final class Manhattan extends DistanceMetric {
+		@Override
+		public double rank_dist(double[] x, int x_off, double[] y, int y_off, int dim) {
+			double sum = 0;
+			
+			for (int i = 0; i < dim; i++)
+				sum += Math.abs(x[x_off + i] - y[y_off + i]);
+			
+			return sum;
+		}
+		
+		@Override
+		public double to_dist(double rank) {
+			return rank;
+		}
+		
+		@Override
+		public double to_rank(double dist) {
+			return dist;
+		}
+		
+		@Override
+		boolean abandons(double[] x, int x_off, double[] y, int y_off, int[] order, double best_rank) {
+			if (best_rank == Double.POSITIVE_INFINITY)
+				return false;
+			
+			double bound = best_rank * (1 + 1e-9), sum = 0;
+			
+			// checking every 4 attributes, the comparison costs as much as a term
+			for (int i = 0; i < order.length; i++) {
+				sum += Math.abs(x[x_off + order[i]] - y[y_off + order[i]]);
+				
+				if ((i & 3) == 3 && sum > bound)
+					return true;
+			}
+			
+			return sum > bound;
+		}
+		
+		@Override
+		public int get_p() {
+			return 1;
+		}
+		
+		@Override
+		public String toString() {
+			return "p = 1";
+		}
+	}
+	
+	private static final class Euclidean extends DistanceMetric {
+		// ranks with the squared distance
+		
+		@Override
+		public double rank_dist(double[] x, int x_off, double[] y, int y_off, int dim) {
+			double sum = 0;
+			
+			for (int i = 0; i < dim; i++) {
+				double diff = x[x_off + i] - y[y_off + i];
+				sum += diff * diff;
+			}
+			
+			return sum;
+		}
+		
+		@Override
+		public double to_dist(double rank) {
+			return Math.sqrt(rank);
+		}
+		
+		@Override
+		public double to_rank(double dist) {
+			return dist * dist;
+		}
+		
+		@Override
+		boolean abandons(double[] x, int x_off, double[] y, int y_off, int[] order, double best_rank) {
+			if (best_rank == Double.POSITIVE_INFINITY)
+				return false;
+			
+			double bound = best_rank * (1 + 1e-9), sum = 0;
+			
+			for (int i = 0; i < order.length; i++) {
+				double diff = x[x_off + order[i]] - y[y_off + order[i]];
+				sum += diff * diff;
+				
+				if ((i & 3) == 3 && sum > bound)
+					return true;
+			}
+			
+			return sum > bound;
+		}
+		
+		@Override
+		public int get_p() {
+			return 2;
+		}
+		
+		@Override
+		public String toString() {
+			return "p = 2";
+		}
+	}
+	
+	private static final class Minkowski extends DistanceMetric {
+		// integer p >= 3, ranks with the sum of |diff|^p, the powers are products ( no Math.pow in the loop )
+		
+		private final int p;
+		
+		Minkowski(int p) {
+			assert p >= 3;
+			this.p = p;
+		}
+		
+		private double power(double value) {
+			double power = value;
+			
+			for (int i = 1; i < p; i++)
+				power *= value;
+			
+			return power;
+		}
+		
+		@Override
+		public double rank_dist(double[] x, int x_off, double[] y, int y_off, int dim) {
+			double sum = 0;
+			
+			// abs: with an odd p the negative differences would cancel the positive ones
+			for (int i = 0; i < dim; i++)
+				sum += power(Math.abs(x[x_off + i] - y[y_off + i]));
+			
+			return sum;
+		}
+		
+		@Override
+		public double to_dist(double rank) {
+			return Math.pow(rank, 1.0/p);
+		}
+		
+		@Override
+		public double to_rank(double dist) {
+			return power(dist);
+		}
+		
+		@Override
+		boolean abandons(double[] x, int x_off, double[] y, int y_off, int[] order, double best_rank) {
+			if (best_rank == Double.POSITIVE_INFINITY)
+				return false;
+			
+			double bound = best_rank * (1 + 1e-9), sum = 0;
+			
+			for (int i = 0; i < order.length; i++) {
+				sum += power(Math.abs(x[x_off + order[i]] - y[y_off + order[i]]));
+				
+				if ((i & 3) == 3 && sum > bound)
+					return true;
+			}
+			
+			return sum > bound;
+		}
+		
+		@Override
+		public int get_p() {
+			return p;
+		}
+		
+		@Override
+		public String toString() {
+			return "p = " + p;
+		}
+	}
+	
+	private static final class Chebyshev extends DistanceMetric {
+		// L-inf: the biggest |diff|, the limit of the Minkowski distances when p grows
+		
+		@Override
+		public double rank_dist(double[] x, int x_off, double[] y, int y_off, int dim) {
+			double max = 0;
+			
+			for (int i = 0; i < dim; i++)
+				max = Math.max(max, Math.abs(x[x_off + i] - y[y_off + i]));
+			
+			return max;
+		}
+		
+		@Override
+		public double to_dist(double rank) {
+			return rank;
+		}
+		
+		@Override
+		public double to_rank(double dist) {
+			return dist;
+		}
+		
+		@Override
+		boolean abandons(double[] x, int x_off, double[] y, int y_off, int[] order, double best_rank) {
+			// the max doesn't depend on the order ( no rounding ), a single attribute past best_rank is enough
+			for (int i = 0; i < order.length; i++)
+				if (Math.abs(x[x_off + order[i]] - y[y_off + order[i]]) > best_rank)
+					return true;
+			
+			return false;
+		}
+		
+		@Override
+		public String toString() {
+			return "L-inf distance";
+		}
+	}
+	
+	private static final class Cosine extends DistanceMetric {
+		/*
+		 * 1 - cos(x, y), only the directions matter. Not a metric ( no triangle inequality ), and no early abandoning
+		 * ( the dot product can go both ways ). A null vector is at distance 1 from everything.
+		 */
+		
+		@Override
+		public double rank_dist(double[] x, int x_off, double[] y, int y_off, int dim) {
+			double dot = 0, x_norm = 0, y_norm = 0;
+			
+			for (int i = 0; i < dim; i++) {
+				double x_i = x[x_off + i], y_i = y[y_off + i];
+				
+				dot += x_i * y_i;
+				x_norm += x_i * x_i;
+				y_norm += y_i * y_i;
+			}
+			
+			if (x_norm == 0 || y_norm == 0)
+				return 1;
+			
+			return 1 - dot / Math.sqrt(x_norm * y_norm);
+		}
+		
+		@Override
+		public double to_dist(double rank) {
+			return rank;
+		}
+		
+		@Override
+		public double to_rank(double dist) {
+			return dist;
+		}
+		
+		@Override
+		public String toString() {
+			return "cosine distance";
+		}
+	}
+	
+	private static final class Canberra extends DistanceMetric {
+		// sum of |x_i - y_i| / ( |x_i| + |y_i| ), 0 / 0 counts as 0. Each term is in [0; 1], whatever the scale of the attribute
+		
+		private static double term(double x_i, double y_i) {
+			double sum = Math.abs(x_i) + Math.abs(y_i);
+			
+			return sum == 0 ? 0 : Math.abs(x_i - y_i) / sum;
+		}
+		
+		@Override
+		public double rank_dist(double[] x, int x_off, double[] y, int y_off, int dim) {
+			double sum = 0;
+			
+			for (int i = 0; i < dim; i++)
+				sum += term(x[x_off + i], y[y_off + i]);
+			
+			return sum;
+		}
+		
+		@Override
+		public double to_dist(double rank) {
+			return rank;
+		}
+		
+		@Override
+		public double to_rank(double dist) {
+			return dist;
+		}
+		
+		@Override
+		boolean abandons(double[] x, int x_off, double[] y, int y_off, int[] order, double best_rank) {
+			if (best_rank == Double.POSITIVE_INFINITY)
+				return false;
+			
+			double bound = best_rank * (1 + 1e-9), sum = 0;
+			
+			for (int i = 0; i < order.length; i++) {
+				sum += term(x[x_off + order[i]], y[y_off + order[i]]);
+				
+				if ((i & 3) == 3 && sum > bound)
+					return true;
+			}
+			
+			return sum > bound;
+		}
+		
+		@Override
+		public String toString() {
+			return "Canberra distance";
+		}
+	}
+}
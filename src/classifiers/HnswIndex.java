@@ -0,0 +1,435 @@
+package classifiers;
+import java.util.Arrays;
+import java.util.Random;
+
+public class HnswIndex extends NeighbourIndex {
+	/*
+	 * Hierarchical Navigable Small World graph ( Malkov & Yashunin, https://arxiv.org/abs/1603.09320 ):
+	 * APPROXIMATE nearest neighbours, a little accuracy is traded for a lot of speed.
+	 *
+	 * Each row is a node of the graph, on the levels 0 to its random level ( exponentially fewer nodes on each level ).
+	 * A search goes greedily from the entry point down to level 0, then explores level 0 with a beam of ef nodes.
+	 *
+	 * Tunables:
+	 * 		M               -> links per node ( 2 * M on level 0 ), more = better recall, more memory and distances
+	 * 		ef_construction -> beam width while inserting, more = better graph, slower build
+	 * 		ef_search       -> beam width while searching ( at least k ), the accuracy / latency knob
+	 *
+	 * The graph is built by train(), row by row, and rows added to the training dataset afterwards can be inserted
+	 * with insert_new_rows() without rebuilding it ( a refresh that only adds files does it by itself ).
+	 * Removed, moved or rewritten rows are not supported: a refresh rebuilds the graph, otherwise train again.
+	 */
+	
+	private final int m, max_links_0, ef_construction;
+	private int ef_search;
+	private final long seed;
+	private final double level_factor; // 1 / ln(M)
+	
+	private Random random;
+	private int[][][] links; // links[row][level] = { count, neighbour rows... }, for the levels 0 to the level of row
+	private int n_inserted, entry_point, max_level;
+	private int rows_version; // dataset.get_rows_version() of the rows in the graph, they can't have changed since
+	
+	private final ThreadLocal<Scratch> scratches = ThreadLocal.withInitial(Scratch::new);
+	
+	public HnswIndex() {
+		this(16, 200, 50);
+	}
+	
+	public HnswIndex(int m, int ef_construction, int ef_search) {
+		this(m, ef_construction, ef_search, 42);
+	}
+	
+	public HnswIndex(int m, int ef_construction, int ef_search, long seed) {
+		// seed of the random levels, so the graph ( and its accuracy ) is reproducible
+		assert m > 1 && ef_construction > 0 && ef_search > 0;
+		
+		this.m = m;
+		this.max_links_0 = 2 * m;
+		this.ef_construction = ef_construction;
+		this.ef_search = ef_search;
+		this.seed = seed;
+		this.level_factor = 1 / Math.log(m);
+	}
+	
+	public void set_ef_search(int ef_search) {
+		// can be changed between queries, the graph doesn't depend on it
+		assert ef_search > 0;
+		this.ef_search = ef_search;
+	}
+	
+	@Override
+	void build() {
+		random = new Random(seed);
+		links = new int[Math.max(16, dataset.size())][][];
+		n_inserted = 0;
+		entry_point = -1;
+		max_level = -1;
+		rows_version = dataset.get_rows_version();
+		
+		insert_new_rows();
+	}
+	
+	@Override
+	void update() {
+		// a refresh that only added rows: they are inserted, otherwise rows were removed or moved
+		if (dataset.get_rows_version() == rows_version)
+			insert_new_rows();
+		else
+			build();
+	}
+	
+	public int insert_new_rows() {
+		/*
+		 * Incremental insert of the rows added to the training dataset since the last build/insert
+		 * ( i.e training_dataset.add_datapoint(img, label) then insert_new_rows() ), returns how many were inserted.
+		 */
+		if (dataset == null)
+			throw new IllegalStateException("The index is not built yet, train the classifier first");
+		
+		// the rows in the graph must be the same, only appended rows can be inserted
+		if (dataset.get_rows_version() != rows_version)
+			throw new IllegalStateException("Rows of the training dataset were removed or changed, train the classifier again");
+		
+		int inserted = 0;
+		
+		while (n_inserted < dataset.size()) {
+			insert(n_inserted++);
+			inserted++;
+		}
+		
+		version = dataset.get_version();
+		
+		return inserted;
+	}
+	
+	private void insert(int row) {
+		if (row >= links.length)
+			links = Arrays.copyOf(links, Math.max(row + 1, 2 * links.length));
+		
+		int level = (int) (-Math.log(1 - random.nextDouble()) * level_factor);
+		links[row] = new int[level + 1][];
+		
+		for (int l = 0; l <= level; l++)
+			links[row][l] = new int[(l == 0 ? max_links_0 : m) + 1];
+		
+		if (entry_point == -1) {
+			entry_point = row;
+			max_level = level;
+			return;
+		}
+		
+		double[] features = dataset.get_features();
+		int offset = dataset.get_offset(row);
+		Scratch scratch = scratches.get();
+		
+		// greedy descent on the levels above the level of the new node
+		int current = entry_point;
+		for (int l = max_level; l > level; l--)
+			current = greedy_search(features, offset, current, l, scratch);
+		
+		for (int l = Math.min(level, max_level); l >= 0; l--) {
+			search_layer(features, offset, current, ef_construction, l, scratch);
+			int n_candidates = scratch.sorted_results();
+			
+			int[] selected = select_neighbours(scratch.sorted_rows, scratch.sorted_dists, n_candidates, m);
+			
+			for (int neighbour : selected) {
+				add_link(row, neighbour, l);
+				add_link(neighbour, row, l);
+			}
+			
+			current = scratch.sorted_rows[0]; // the nearest found is the entry point of the next level
+		}
+		
+		if (level > max_level) {
+			max_level = level;
+			entry_point = row;
+		}
+	}
+	
+	private void add_link(int from, int to, int level) {
+		int[] list = links[from][level];
+		int max_links = list.length - 1;
+		
+		if (list[0] < max_links) {
+			list[++list[0]] = to;
+			return;
+		}
+		
+		// full: keep the best max_links among the current links and the new one
+		double[] features = dataset.get_features();
+		int dim = dataset.get_dim(), from_offset = dataset.get_offset(from);
+		int[] candidates = Arrays.copyOfRange(list, 1, max_links + 2);
+		candidates[max_links] = to;
+		double[] dists = new double[candidates.length];
+		
+		for (int i = 0; i < candidates.length; i++)
+			dists[i] = metric.dist(features, from_offset, features, dataset.get_offset(candidates[i]), dim, p);
+		
+		sort(candidates, dists, candidates.length);
+		int[] selected = select_neighbours(candidates, dists, candidates.length, max_links);
+		
+		list[0] = selected.length;
+		System.arraycopy(selected, 0, list, 1, selected.length);
+	}
+	
+	private int[] select_neighbours(int[] rows, double[] dists, int n, int max) {
+		/*
+		 * Heuristic of the paper: candidates by increasing distance, a candidate is kept only if it is closer to
+		 * the new node than to every kept one, so the links go in different directions. Then filled up with
+		 * the closest discarded ones if there are less than max.
+		 */
+		double[] features = dataset.get_features();
+		int dim = dataset.get_dim();
+		int[] selected = new int[Math.min(n, max)];
+		boolean[] kept = new boolean[n];
+		int count = 0;
+		
+		for (int i = 0; i < n && count < max; i++) {
+			boolean good = true;
+			
+			for (int j = 0; j < count && good; j++)
+				if (metric.dist(features, dataset.get_offset(rows[i]), features, dataset.get_offset(selected[j]), dim, p) < dists[i])
+					good = false;
+			
+			if (good) {
+				selected[count++] = rows[i];
+				kept[i] = true;
+			}
+		}
+		
+		for (int i = 0; i < n && count < selected.length; i++)
+			if (!kept[i])
+				selected[count++] = rows[i];
+		
+		return selected;
+	}
+	
+	private int greedy_search(double[] query, int query_off, int start, int level, Scratch scratch) {
+		// nearest node reachable from start by always moving to a closer neighbour
+		double[] features = dataset.get_features();
+		int dim = dataset.get_dim(), current = start;
+		double current_dist = metric.dist(query, query_off, features, dataset.get_offset(current), dim, p);
+		scratch.evaluations++;
+		boolean changed = true;
+		
+		while (changed) {
+			changed = false;
+			int[] list = links[current][level];
+			
+			for (int i = 1; i <= list[0]; i++) {
+				double d = metric.dist(query, query_off, features, dataset.get_offset(list[i]), dim, p);
+				scratch.evaluations++;
+				
+				if (d < current_dist) {
+					current_dist = d;
+					current = list[i];
+					changed = true;
+				}
+			}
+		}
+		
+		return current;
+	}
+	
+	private void search_layer(double[] query, int query_off, int start, int ef, int level, Scratch scratch) {
+		// beam search of one level, the ef nearest found end up in scratch.results
+		double[] features = dataset.get_features();
+		int dim = dataset.get_dim();
+		int stamp = scratch.next_stamp(n_inserted + 1);
+		NeighbourHeap results = scratch.results;
+		CandidateQueue candidates = scratch.candidates;
+		
+		double d = metric.dist(query, query_off, features, dataset.get_offset(start), dim, p);
+		scratch.evaluations++;
+		scratch.visited[start] = stamp;
+		
+		results.reset(ef);
+		results.offer(d, dataset.get_label(start), start);
+		candidates.clear();
+		candidates.push(d, start);
+		
+		while (candidates.size() > 0) {
+			if (candidates.min_dist() > results.worst())
+				break; // the closest candidate left can't improve the results
+			
+			int[] list = links[candidates.pop()][level];
+			
+			for (int i = 1; i <= list[0]; i++) {
+				int neighbour = list[i];
+				
+				if (scratch.visited[neighbour] == stamp)
+					continue;
+				
+				scratch.visited[neighbour] = stamp;
+				d = metric.dist(query, query_off, features, dataset.get_offset(neighbour), dim, p);
+				scratch.evaluations++;
+				
+				// a tie with the farthest result gets in with a smaller row ( see NeighbourHeap )
+				if (results.offer(d, dataset.get_label(neighbour), neighbour))
+					candidates.push(d, neighbour);
+			}
+		}
+	}
+	
+	@Override
+	int search(double[] query, int query_off, NeighbourHeap heap) {
+		if (entry_point == -1)
+			return 0;
+		
+		Scratch scratch = scratches.get();
+		scratch.evaluations = 0;
+		
+		int current = entry_point;
+		for (int l = max_level; l > 0; l--)
+			current = greedy_search(query, query_off, current, l, scratch);
+		
+		// ef_search at least k, otherwise there wouldn't be k neighbours
+		search_layer(query, query_off, current, Math.max(ef_search, heap.capacity()), 0, scratch);
+		
+		NeighbourHeap results = scratch.results;
+		for (int i = 0; i < results.size(); i++)
+			heap.offer(results.get_dist(i), results.get_label(i), results.get_row(i));
+		
+		return scratch.evaluations;
+	}
+	
+	private static void sort(int[] rows, double[] dists, int n) {
+		// insertion sort by distance, n is small ( ef_construction, 2 * M )
+		for (int i = 1; i < n; i++) {
+			int row = rows[i];
+			double dist = dists[i];
+			int j = i - 1;
+			
+			while (j >= 0 && dists[j] > dist) {
+				rows[j + 1] = rows[j];
+				dists[j + 1] = dists[j];
+				j--;
+			}
+			
+			rows[j + 1] = row;
+			dists[j + 1] = dist;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "HNSW ( M = " + m + ", ef_construction = " + ef_construction + ", ef_search = " + ef_search + ", "
+				+ (max_level + 1) + " levels )";
+	}
+	
+	private static class Scratch {
+		// per-thread buffers of the searches, reused from one query to the next
+		int[] visited = new int[0]; // visited[row] == stamp -> visited during the current search
+		int stamp, evaluations;
+		NeighbourHeap results = new NeighbourHeap();
+		CandidateQueue candidates = new CandidateQueue();
+		int[] sorted_rows = new int[0];
+		double[] sorted_dists = new double[0];
+		
+		int next_stamp(int size) {
+			if (visited.length < size) {
+				visited = new int[Math.max(size, 2 * visited.length)];
+				stamp = 0;
+			}
+			
+			if (++stamp == Integer.MAX_VALUE) {
+				Arrays.fill(visited, 0);
+				stamp = 1;
+			}
+			
+			return stamp;
+		}
+		
+		int sorted_results() {
+			// results by increasing distance in sorted_rows / sorted_dists ( insertions only )
+			int n = results.size();
+			
+			if (sorted_rows.length < n) {
+				sorted_rows = new int[n];
+				sorted_dists = new double[n];
+			}
+			
+			for (int i = 0; i < n; i++) {
+				sorted_rows[i] = results.get_row(i);
+				sorted_dists[i] = results.get_dist(i);
+			}
+			
+			sort(sorted_rows, sorted_dists, n);
+			
+			return n;
+		}
+	}
+	
+	private static class CandidateQueue {
+		// min-heap of ( distance, row ), growable
+		private double[] dists = new double[64];
+		private int[] rows = new int[64];
+		private int size;
+		
+		void clear() {
+			size = 0;
+		}
+		
+		int size() {
+			return size;
+		}
+		
+		double min_dist() {
+			return dists[0];
+		}
+		
+		void push(double dist, int row) {
+			if (size == dists.length) {
+				dists = Arrays.copyOf(dists, 2 * size);
+				rows = Arrays.copyOf(rows, 2 * size);
+			}
+			
+			int i = size++;
+			
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				
+				if (dists[parent] <= dist)
+					break;
+				
+				dists[i] = dists[parent];
+				rows[i] = rows[parent];
+				i = parent;
+			}
+			
+			dists[i] = dist;
+			rows[i] = row;
+		}
+		
+		int pop() {
+			// removes the nearest, returns its row
+			int top = rows[0];
+			double dist = dists[--size];
+			int row = rows[size], i = 0;
+			
+			while (true) {
+				int child = 2 * i + 1;
+				
+				if (child >= size)
+					break;
+				
+				if (child + 1 < size && dists[child + 1] < dists[child])
+					child++;
+				
+				if (dists[child] >= dist)
+					break;
+				
+				dists[i] = dists[child];
+				rows[i] = rows[child];
+				i = child;
+			}
+			
+			dists[i] = dist;
+			rows[i] = row;
+			
+			return top;
+		}
+	}
+}
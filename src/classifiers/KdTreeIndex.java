@@ -0,0 +1,194 @@
+package classifiers;
+import java.util.Arrays;
+
+public class KdTreeIndex extends NeighbourIndex {
+	/*
+	 * KD-tree: each node splits its rows in two halves at the median of the attribute with the biggest spread,
+	 * the leaves hold at most leaf_size rows. Meant for the low dimensional representations ( E34, 16 values ),
+	 * in high dimension almost every leaf ends up being visited.
+	 *
+	 * Exact search for any p: the far child of a node is only visited if the distance from the query to its cell
+	 * can beat the current k-th nearest. That distance is maintained incrementally while going down
+	 * ( Arya & Mount ): off[i] is how far the query is from the cell along attribute i, and
+	 * reduced = sum of |off[i]|^p, so going to the far side only changes one term.
+	 *
+	 * The nodes are stored in flat arrays, node n covers rows[start[n], end[n]).
+	 */
+	
+	public static final int DEFAULT_LEAF_SIZE = 8;
+	
+	private final int leaf_size;
+	
+	private int[] rows; // dataset rows, permuted so that each node covers a contiguous range
+	private int[] start, end, split_attribute, left, right; // split_attribute = -1 for a leaf
+	private double[] split_value;
+	private int n_nodes;
+	
+	private final ThreadLocal<double[]> offsets = ThreadLocal.withInitial(() -> new double[0]); // per-thread off[] of search
+	
+	public KdTreeIndex() {
+		this(DEFAULT_LEAF_SIZE);
+	}
+	
+	public KdTreeIndex(int leaf_size) {
+		assert leaf_size > 0;
+		this.leaf_size = leaf_size;
+	}
+	
+	@Override
+	void build() {
+		int size = dataset.size();
+		
+		rows = new int[size];
+		for (int row = 0; row < size; row++)
+			rows[row] = row;
+		
+		// at most 2 * size - 1 nodes
+		int max_nodes = Math.max(1, 2 * size);
+		start = new int[max_nodes];
+		end = new int[max_nodes];
+		split_attribute = new int[max_nodes];
+		left = new int[max_nodes];
+		right = new int[max_nodes];
+		split_value = new double[max_nodes];
+		n_nodes = 0;
+		
+		build_node(0, size);
+	}
+	
+	private int build_node(int from, int to) {
+		int node = n_nodes++;
+		start[node] = from;
+		end[node] = to;
+		split_attribute[node] = -1;
+		
+		if (to - from <= leaf_size)
+			return node;
+		
+		// the attribute with the biggest spread over the rows of the node
+		double[] features = dataset.get_features();
+		int dim = dataset.get_dim(), attribute = -1;
+		double best_spread = 0;
+		
+		for (int i = 0; i < dim; i++) {
+			double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+			
+			for (int j = from; j < to; j++) {
+				double value = features[dataset.get_offset(rows[j]) + i];
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+			
+			if (max - min > best_spread) {
+				best_spread = max - min;
+				attribute = i;
+			}
+		}
+		
+		if (attribute == -1)
+			return node; // all the rows are the same point
+		
+		int mid = (from + to) >>> 1;
+		select(from, to, mid, attribute);
+		
+		split_attribute[node] = attribute;
+		split_value[node] = features[dataset.get_offset(rows[mid]) + attribute];
+		left[node] = build_node(from, mid);
+		right[node] = build_node(mid, to);
+		
+		return node;
+	}
+	
+	private void select(int from, int to, int nth, int attribute) {
+		// quickselect: rows[nth] gets the row of rank nth ( by attribute ), smaller ones before, bigger ones after
+		double[] features = dataset.get_features();
+		int lo = from, hi = to - 1;
+		
+		while (lo < hi) {
+			double pivot = features[dataset.get_offset(rows[(lo + hi) >>> 1]) + attribute];
+			int i = lo, j = hi;
+			
+			while (i <= j) {
+				while (features[dataset.get_offset(rows[i]) + attribute] < pivot)
+					i++;
+				while (features[dataset.get_offset(rows[j]) + attribute] > pivot)
+					j--;
+				
+				if (i <= j) {
+					int tmp = rows[i];
+					rows[i++] = rows[j];
+					rows[j--] = tmp;
+				}
+			}
+			
+			if (nth <= j)
+				hi = j;
+			else if (nth >= i)
+				lo = i;
+			else
+				break;
+		}
+	}
+	
+	@Override
+	int search(double[] query, int query_off, NeighbourHeap heap) {
+		double[] off = offsets.get();
+		int dim = dataset.get_dim();
+		
+		if (off.length != dim) {
+			off = new double[dim];
+			offsets.set(off);
+		}
+		else
+			Arrays.fill(off, 0);
+		
+		return search_node(0, 0, off, query, query_off, dataset.get_features(), heap);
+	}
+	
+	private int search_node(int node, double reduced, double[] off, double[] query, int query_off, double[] features, NeighbourHeap heap) {
+		int attribute = split_attribute[node];
+		
+		if (attribute == -1) {
+			int dim = dataset.get_dim();
+			
+			for (int j = start[node]; j < end[node]; j++) {
+				int row = rows[j];
+				heap.offer(metric.dist(query, query_off, features, dataset.get_offset(row), dim, p), dataset.get_label(row), row);
+			}
+			
+			return end[node] - start[node];
+		}
+		
+		double diff = query[query_off + attribute] - split_value[node];
+		int near = diff < 0 ? left[node] : right[node], far = diff < 0 ? right[node] : left[node];
+		
+		int evaluations = search_node(near, reduced, off, query, query_off, features, heap);
+		
+		// lower bound of the distances to the far cell, a tiny slack so rounding never prunes an exact tie
+		double old_off = off[attribute];
+		double far_reduced = reduced - term(old_off) + term(diff);
+		
+		if (AbstractClassifier.root(far_reduced, p) * (1 - 1e-12) <= heap.worst()) {
+			off[attribute] = Math.abs(diff);
+			evaluations += search_node(far, far_reduced, off, query, query_off, features, heap);
+			off[attribute] = old_off;
+		}
+		
+		return evaluations;
+	}
+	
+	private double term(double diff) {
+		// |diff|^p
+		if (p == 1)
+			return Math.abs(diff);
+		else if (p == 2)
+			return diff * diff;
+		
+		return Math.pow(Math.abs(diff), p);
+	}
+	
+	@Override
+	public String toString() {
+		return "KD-tree ( leaf size " + leaf_size + ", " + n_nodes + " nodes )";
+	}
+}
@@ -1,7 +1,7 @@
 package classifiers;
 
-import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -14,6 +14,7 @@ import java.util.stream.IntStream;
 
 import dataset.Dataset;
 import dataset.Image;
+import dataset.StreamingDataset;
 
 public class KmeansClassifier extends AbstractClassifier {
 	/*
@@ -34,12 +35,15 @@ public class KmeansClassifier extends AbstractClassifier {
 	 * 
 	 */
 	
-	private int k, p; // number of clusters, and p-> p param of Minkowski metric
+	private int k; // number of clusters
+	private DistanceMetric metric; // i.e DistanceMetric.minkowski(p)
 	private long max_iter;
 	private String init_method; // which init method will be used
 	
 	private Dataset training_dataset;
+	private String representation_type; // of the training images
 	private Map<Centroid, List<Image>> clusters; // list of constructed clusters
+	private int[] order; // attributes by decreasing variance, for the early abandoning of the nearest centroid
 	
 	private static final Random random = new Random();
 	
@@ -55,8 +59,16 @@ public class KmeansClassifier extends AbstractClassifier {
 	}
 	
 	public KmeansClassifier(int k, int p, long max_iter, String init_method) {
+		this(k, DistanceMetric.minkowski(p), max_iter, init_method);
+	}
+	
+	public KmeansClassifier(int k, DistanceMetric metric) {
+		this(k, metric, 100, "kmeans++");
+	}
+	
+	public KmeansClassifier(int k, DistanceMetric metric, long max_iter, String init_method) {
 		assert k > 0;
-		assert p > 0;
+		assert metric != null;
 		assert max_iter > 0;
 		assert init_method.toLowerCase().equals("random") // completely random ( i.e random from min_value to max_value )
 			|| init_method.toLowerCase().equals("enhanced_random") // enhanced random takes random from specific range, see below
@@ -64,7 +76,7 @@ public class KmeansClassifier extends AbstractClassifier {
 		
 		
 		this.k = k;
-		this.p = p;
+		this.metric = metric;
 		this.max_iter = max_iter;
 		this.init_method = init_method.toLowerCase();
 		
@@ -76,20 +88,38 @@ public class KmeansClassifier extends AbstractClassifier {
 		assert training_dataset != null && training_dataset.size() > 0;
 		
 		this.training_dataset = training_dataset;
+		this.normalizer = training_dataset.get_normalizer();
+		this.representation_type = training_dataset.get_representation_type();
+		this.order = variance_order(training_dataset);
 		boolean enhanced = false;
 		
+		double[] features = training_dataset.get_features();
+		int dim = training_dataset.get_dim();
+		
 		// STEP 1: INITIALIZATION
 		// 1.a Get the initial_centroids
 		List<Centroid> initial_centroids;
 		
 		if (init_method.equals("random"))
-			initial_centroids = get_random_centroids(false);
+			initial_centroids = get_random_centroids(false, null, null, dim);
 		else if (init_method.equals("enhanced_random")) {
-			initial_centroids = get_random_centroids(true);
+			double[] mins = new double[dim], maxs = new double[dim];
+			
+			for (int i = 0; i < dim; i++) {
+				mins[i] = training_dataset.get_min(i);
+				maxs[i] = training_dataset.get_max(i);
+			}
+			
+			initial_centroids = get_random_centroids(true, mins, maxs, dim);
 			enhanced = true;
 		}
-		else
-			initial_centroids = kmeans_plus_plus_init();
+		else {
+			int[] offsets = new int[training_dataset.size()];
+			for (int row = 0; row < offsets.length; row++)
+				offsets[row] = training_dataset.get_offset(row);
+			
+			initial_centroids = kmeans_plus_plus_init(features, offsets, dim);
+		}
 				
 		// STEP 2
 		
@@ -113,59 +143,174 @@ public class KmeansClassifier extends AbstractClassifier {
 			for (Centroid centroid : last_centroids)
 				clusters.put(centroid, new ArrayList<>());
 			
+			// running sums of the coordinates of each cluster, used to compute the new averages
+			double[] sums = new double[last_centroids.size() * dim];
+			int[] sizes = new int[last_centroids.size()];
+			
 			// STEP 2: For each i∈{1, . . . , k}, set the cluster C_i to be the set of points in X that are closer to
 			// c_i than they are to c_j for all j != i
 			// Iter over the dataset, and assign each image to its nearest centroid
-			for (Image img : training_dataset.keySet()) {
-				
-				Centroid nearest_centroid = get_the_nearest_centroid(img, last_centroids).getKey();
+			for (int row = 0; row < training_dataset.size(); row++) {
+				int offset = training_dataset.get_offset(row);
+				int nearest = get_the_nearest_centroid(features, offset, last_centroids);
 
-				clusters.get(nearest_centroid).add(img);
+				clusters.get(last_centroids.get(nearest)).add(training_dataset.get_image(row));
+				accumulate(sums, nearest * dim, features, offset, dim);
+				sizes[nearest]++;
 			}
 			
 			// Calculate the new avg centroids
 			avg_centroids = new ArrayList<>();
 			
 			// STEP 3: For each i∈{1, . . . , k}, set ci to be the center of mass of all points in Ci : ci= 1/Ci * ∑_x∈Ci x
-			for (Centroid centroid : last_centroids) {
-				List<Image> imgs = clusters.get(centroid);
-				avg_centroids.add(get_avg_centroid(centroid, imgs));
-			}
+			for (int c = 0; c < last_centroids.size(); c++)
+				avg_centroids.add(get_avg_centroid(last_centroids.get(c), sums, c * dim, sizes[c], dim));
 			
 		} while (! last_centroids.equals(avg_centroids) && counter++ < max_iter);
 		
 		System.out.println("iterations = " + counter);
 		
-		List<Integer> possible_labels = IntStream.range(1, 10).boxed().collect(Collectors.toList());
-		
 		// fix the label of the final centroids as the dominant label
-		for (Centroid centroid : clusters.keySet()) {
-			int label = get_dominant_label(clusters.get(centroid));
-			possible_labels.removeIf(l -> possible_labels.contains(l) && l == label);
+		int[] dominant_labels = clusters.values().stream().mapToInt(this::get_dominant_label).toArray();
+		fix_labels(dominant_labels, enhanced);
+		
+		return true;
+	}
+	
+	public boolean train(StreamingDataset training_dataset) {
+		/*
+		 * Same algorithm, in bounded memory: each iteration streams the dataset chunk by chunk.
+		 * 
+		 * Differences with train(Dataset):
+		 * 		- kmeans++ initialization is done on the first chunk only ( a sample of the dataset )
+		 * 		- enhanced_random needs the ranges, which costs one extra streaming pass
+		 * 		- the clusters only keep the centroids, the lists of images of get_clusters() stay empty
+		 */
+		assert training_dataset != null && training_dataset.size() > 0;
+		
+		this.training_dataset = null;
+		this.normalizer = null; // the chunks hold raw values
+		this.representation_type = training_dataset.get_representation_type();
+		boolean enhanced = false;
+		
+		int dim = training_dataset.get_dim();
+		
+		// the variances of the early abandoning are the ones of the first chunk ( a sample, no extra streaming pass )
+		StreamingDataset.Chunk first_chunk = training_dataset.iterator().next();
+		double[] variances = new double[dim];
+		
+		for (int i = 0; i < dim; i++) {
+			double sum = 0, sum_sq = 0;
 			
-			centroid.set_label(label);
+			for (int row = 0; row < first_chunk.size(); row++) {
+				double value = first_chunk.get_features()[first_chunk.get_offset(row) + i];
+				sum += value;
+				sum_sq += value * value;
+			}
+			
+			variances[i] = sum_sq / first_chunk.size() - (sum / first_chunk.size()) * (sum / first_chunk.size());
 		}
 		
-		if (enhanced) {
-			// Handling the case of empty clusters if we did a random initialization
-			// randomly distribute non-used labels to isolated centroids
-			for (Centroid centroid : clusters.keySet()) {
-				if (centroid.get_label() == -100) {
-					int random_index = random.nextInt(possible_labels.size());
-					centroid.set_label(possible_labels.get(random_index));
+		this.order = decreasing_order(variances);
+		
+		// STEP 1: INITIALIZATION
+		List<Centroid> initial_centroids;
+		
+		if (init_method.equals("random"))
+			initial_centroids = get_random_centroids(false, null, null, dim);
+		else if (init_method.equals("enhanced_random")) {
+			double[] mins = new double[dim], maxs = new double[dim];
+			
+			for (int i = 0; i < dim; i++) {
+				mins[i] = training_dataset.get_min(i);
+				maxs[i] = training_dataset.get_max(i);
+			}
+			
+			initial_centroids = get_random_centroids(true, mins, maxs, dim);
+			enhanced = true;
+		}
+		else {
+			int[] offsets = new int[first_chunk.size()];
+			for (int row = 0; row < offsets.length; row++)
+				offsets[row] = first_chunk.get_offset(row);
+			
+			initial_centroids = kmeans_plus_plus_init(first_chunk.get_features(), offsets, dim);
+		}
+		
+		// STEP 2 & 3, see train(Dataset)
+		List<Centroid> last_centroids;
+		List<Centroid> avg_centroids = initial_centroids.stream().map(Centroid::clone).collect(Collectors.toList());
+		int[][] label_counts;
+		
+		long counter = 0;
+		
+		do {
+			last_centroids = avg_centroids.stream().map(Centroid::clone).collect(Collectors.toList());
+			
+			double[] sums = new double[last_centroids.size() * dim];
+			int[] sizes = new int[last_centroids.size()];
+			label_counts = new int[last_centroids.size()][10]; // labels are in [1, 9]
+			
+			for (StreamingDataset.Chunk chunk : training_dataset) {
+				double[] features = chunk.get_features();
+				
+				for (int row = 0; row < chunk.size(); row++) {
+					int offset = chunk.get_offset(row);
+					int nearest = get_the_nearest_centroid(features, offset, last_centroids);
 					
-					possible_labels.remove(random_index);
+					accumulate(sums, nearest * dim, features, offset, dim);
+					sizes[nearest]++;
+					label_counts[nearest][chunk.get_label(row)]++;
 				}
 			}
-		}
+			
+			avg_centroids = new ArrayList<>();
+			
+			for (int c = 0; c < last_centroids.size(); c++)
+				avg_centroids.add(get_avg_centroid(last_centroids.get(c), sums, c * dim, sizes[c], dim));
+			
+		} while (! last_centroids.equals(avg_centroids) && counter++ < max_iter);
+		
+		System.out.println("iterations = " + counter);
+		
+		clusters = new LinkedHashMap<Centroid, List<Image>>();
+		for (Centroid centroid : last_centroids)
+			clusters.put(centroid, new ArrayList<>());
+		
+		int[] dominant_labels = Arrays.stream(label_counts).mapToInt(this::get_dominant_label).toArray();
+		fix_labels(dominant_labels, enhanced);
+		
 		return true;
 	}
 
 	@Override
 	public int predict(Image img) {
-		assert img.get_representation_type().equals(training_dataset.get_representation_type());
+		assert img.get_representation_type().equals(representation_type);
+		
+		return predict(query_values(img), 0);
+	}
+	
+	@Override
+	public int predict(double[] x, int x_off) {
+		List<Centroid> centroids = new ArrayList<>(clusters.keySet());
 		
-		return get_the_nearest_centroid(img, new ArrayList<>(clusters.keySet()) ).getKey().get_label();
+		return centroids.get(get_the_nearest_centroid(x, x_off, centroids)).get_label();
+	}
+	
+	@Override
+	protected int[] predict_batch(double[] x, int n_rows, int dim) {
+		/*
+		 * The centroids are few and stay in cache anyway, so no tiling here: the centroid list is built once per
+		 * batch instead of once per query. Same predictions as predict.
+		 */
+		
+		List<Centroid> centroids = new ArrayList<>(clusters.keySet());
+		int[] predicted = new int[n_rows];
+		
+		for (int row = 0; row < n_rows; row++)
+			predicted[row] = centroids.get(get_the_nearest_centroid(x, row * dim, centroids)).get_label();
+		
+		return predicted;
 	}
 	
 	@Override
@@ -176,8 +321,34 @@ public class KmeansClassifier extends AbstractClassifier {
 	public Map<Centroid, List<Image>> get_clusters() {
 		return clusters;
 	}
+	
+	private void fix_labels(int[] dominant_labels, boolean enhanced) {
+		// dominant_labels[c] is the dominant label of the c-th cluster ( -100 if the cluster is empty )
+		List<Integer> possible_labels = IntStream.range(1, 10).boxed().collect(Collectors.toList());
+		
+		int c = 0;
+		for (Centroid centroid : clusters.keySet()) {
+			int label = dominant_labels[c++];
+			possible_labels.removeIf(l -> possible_labels.contains(l) && l == label);
+			
+			centroid.set_label(label);
+		}
+		
+		if (enhanced) {
+			// Handling the case of empty clusters if we did a random initialization
+			// randomly distribute non-used labels to isolated centroids
+			for (Centroid centroid : clusters.keySet()) {
+				if (centroid.get_label() == -100) {
+					int random_index = random.nextInt(possible_labels.size());
+					centroid.set_label(possible_labels.get(random_index));
+					
+					possible_labels.remove(random_index);
+				}
+			}
+		}
+	}
 
-	private List<Centroid> get_random_centroids(boolean enhanced) {
+	private List<Centroid> get_random_centroids(boolean enhanced, double[] mins, double[] maxs, int dim) {
 		/*
 		 * enhanced random will take random value in [min, max] range for each attribute
 		 * 
@@ -186,33 +357,29 @@ public class KmeansClassifier extends AbstractClassifier {
 		List<Centroid> random_centroids = new ArrayList<>();
 		
 		for(int i = 0; i < this.k; i++) 
-			random_centroids.add(new Centroid(get_random_coords(enhanced)));
+			random_centroids.add(new Centroid(get_random_coords(enhanced, mins, maxs, dim)));
 		
 		return random_centroids;
 	}
 	
-	private List<Double> get_random_coords(boolean enhanced) {
+	private double[] get_random_coords(boolean enhanced, double[] mins, double[] maxs, int dim) {
 		/*
 		 * enhanced random will take random value in [min, max] range for each attribute
 		 * 
 		 * completely random will take random value in [MIN_VALUE, MAX_VALUE]
 		 */
 		
-		List<Double> random_coords = new ArrayList<>();
-		List<Double> mins = training_dataset.get_mins();
-		List<Double> maxs = training_dataset.get_maxs();
-		
-		int dim = mins.size();
+		double[] random_coords = new double[dim];
 		double max, min;
 		
 		if (enhanced) {
 			// getting the range of [min-max] list for each attribute 
 			
 			for(int i = 0; i < dim; i++) {
-				max = maxs.get(i);
-				min = mins.get(i);
+				max = maxs[i];
+				min = mins[i];
 				
-				random_coords.add(random.nextDouble() * (max - min) + min);
+				random_coords[i] = random.nextDouble() * (max - min) + min;
 			}
 		}
 		else {
@@ -220,50 +387,61 @@ public class KmeansClassifier extends AbstractClassifier {
 				max = Double.MAX_VALUE;
 				min = Double.MIN_VALUE;
 				
-				random_coords.add(random.nextDouble() * (max - min) + min);
+				random_coords[i] = random.nextDouble() * (max - min) + min;
 			}
 		}
 		
 		return random_coords;
 	}
 	
-	private List<Centroid> kmeans_plus_plus_init() {
-		// using Kmeans++
+	private List<Centroid> kmeans_plus_plus_init(double[] features, int[] offsets, int dim) {
+		// using Kmeans++ over the rows of features starting at offsets
 		
 		// 2.2 in http://ilpubs.stanford.edu:8090/778/1/2006-13.pdf
 		// initialization phase using Kmeans++ approach: D^2 weighting
 		// constructing the array of centroids
 		List<Centroid> centroids = new ArrayList<>();
 		
-		// getting the list of all datapoints
-		List<Image> all_datapoints = new ArrayList<>(training_dataset.keySet());
+		// getting the list of all datapoints ( their offsets )
+		List<Integer> all_datapoints = new ArrayList<>(offsets.length);
+		for (int offset : offsets)
+			all_datapoints.add(offset);
 		
 //		assert k <= all_datapoints.size(); 
 		
 		// Take one center c0, chosen uniformly at random from X (all_datapoints)
-		Image selected_img = all_datapoints.get(random.nextInt(all_datapoints.size()));
-//		Image selected_img = all_datapoints.get(7);
-		centroids.add(new Centroid(selected_img.get_representation().get_data()));
+		int selected_index = random.nextInt(all_datapoints.size());
+//		int selected_index = 7;
+		int selected_offset = all_datapoints.get(selected_index);
+		centroids.add(new Centroid(Arrays.copyOfRange(features, selected_offset, selected_offset + dim)));
 		
 		// remove the selected_img from all_datapoints list so we don't calculate its
 		// distance to all the centroids ( because it's already a centroid)
 		// https://www.youtube.com/watch?v=HatwtJSsj5Q
-		all_datapoints.remove(selected_img);
+		all_datapoints.remove(selected_index);
+		
+		List<Double> distances = new ArrayList<>(); // each entry will hold the MIN distance between all centroids and datapoint_i;
 		
 		// 1c. Repeat Step 1b. until we have taken k centers altogether
 		for (int i = 1; i < this.k; i++) {
 			// 1b. Take a new center ci, choosing x∈X with probability D(x)^2 / (sum[for x in X] of D(x)^2)
 			
-			// calculating all distances from all datapoints to all current centroidS
-			
+			// calculating all distances from all datapoints to all current centroidS:
+			// only the distances to the last centroid are new, D(x) of the previous step is kept for the others
+			// ( O(n * k) distances for the whole initialization instead of O(n * k^2) )
 			double sum = 0; // (sum[for x in X] of D(x)^2)
-			List<Double> distances = new ArrayList<>(); // each entry will hold the MIN distance between all centroids and datapoint_i;
+			Centroid last_centroid = centroids.get(centroids.size() - 1);
 			
-			// filling distances list i.e calculating D(x)^2 for x∈X  
-			for (Image img : all_datapoints) {
-				double dist = get_the_nearest_centroid(img, centroids).getValue();
-				distances.add(dist);
-				sum += dist;
+			// updating distances list i.e calculating D(x)^2 for x∈X  
+			for (int j = 0; j < all_datapoints.size(); j++) {
+				double dist = metric.dist(features, all_datapoints.get(j), last_centroid.get_values(), 0, dim);
+				
+				if (j < distances.size())
+					distances.set(j, Math.min(distances.get(j), dist));
+				else
+					distances.add(dist);
+				
+				sum += distances.get(j);
 			}
 			
 			// calculating the proportions/probabilities list, all values now are between 0 and 1
@@ -278,54 +456,54 @@ public class KmeansClassifier extends AbstractClassifier {
 			
 			// choosing x∈X with probability D(x)^2 / (sum[for x in X] of D(x)^2)
 			// add the chosen img[i] to centroids list and remove it from datapoints list
-			selected_img = all_datapoints.get(chosen_centroid_index); 
-			centroids.add(new Centroid(selected_img.get_representation().get_data()));
-			all_datapoints.remove(selected_img);
+			selected_offset = all_datapoints.get(chosen_centroid_index);
+			centroids.add(new Centroid(Arrays.copyOfRange(features, selected_offset, selected_offset + dim)));
+			all_datapoints.remove(chosen_centroid_index);
+			distances.remove(chosen_centroid_index);
 		}
 		
 		return centroids;
 	}
 	
-	private Centroid get_avg_centroid(Centroid centroid, List<Image> imgs) {
-		if (imgs == null || imgs.size() == 0) 
+	private Centroid get_avg_centroid(Centroid centroid, double[] sums, int offset, int h_many_imgs, int dim) {
+		// sums[offset, offset + dim) holds the coordinates sum of the h_many_imgs images of the cluster
+		if (h_many_imgs == 0) 
 			return centroid;
 		
-		List<Double> avg_coords = new ArrayList<>();
-		
-		int h_many_imgs = imgs.size(); // how many images in the dataset
-		int dim = training_dataset.get_maxs().size(); // how many attributes in each image
-		
-		double sum;
+		double[] avg_coords = new double[dim];
 		
-		for (int i = 0; i < dim; i++) {
-			sum = 0;
-			
-			for (Image img : imgs)
-				sum += img.get_representation().get_data().get(i);
-			
-			avg_coords.add(sum / h_many_imgs);
-		}
+		for (int i = 0; i < dim; i++)
+			avg_coords[i] = sums[offset + i] / h_many_imgs;
 		
 		return new Centroid(avg_coords);
 	}
 	
-	private Map.Entry<Centroid, Double> get_the_nearest_centroid(Image img, List<Centroid> centroids) {
+	private static void accumulate(double[] sums, int sums_off, double[] x, int x_off, int dim) {
+		for (int i = 0; i < dim; i++)
+			sums[sums_off + i] += x[x_off + i];
+	}
+	
+	private int get_the_nearest_centroid(double[] x, int x_off, List<Centroid> centroids) {
 		/*
-		 * will calculate all distances between the image img, and all centroids in
-		 * the list then returns the pair <Nearest_centroid, the minimum distance>.
-		 * no Pair class in java -> using Map.Entry
+		 * will calculate all distances between the point x ( starting at x_off ), and all centroids in
+		 * the list then returns the index of the nearest centroid.
 		 */
 		
 		assert centroids != null && centroids.size() > 0;
 		
-		List<Double> img_coords = img.get_representation().get_data();
+		int dim = centroids.get(0).get_values().length;
 		
+		// rank distances ( DistanceMetric.rank_dist ), they give the same nearest centroid without the roots
 		int min_index = 0;
-		double min_distance = dist(img_coords, centroids.get(0).get_coords(), this.p);
+		double min_distance = metric.rank_dist(x, x_off, centroids.get(0).get_values(), 0, dim);
 		double new_distance;
 		
 		for (int i = 1; i < centroids.size(); i++) {
-			new_distance = dist(img_coords, centroids.get(i).get_coords(), this.p);
+			// most centroids can't beat the nearest so far, see DistanceMetric.abandons
+			if (metric.abandons(x, x_off, centroids.get(i).get_values(), 0, order, min_distance))
+				continue;
+			
+			new_distance = metric.rank_dist(x, x_off, centroids.get(i).get_values(), 0, dim);
 			
 			if (new_distance < min_distance) {
 				min_distance = new_distance;
@@ -333,7 +511,20 @@ public class KmeansClassifier extends AbstractClassifier {
 			}
 		}
 		
-		return new AbstractMap.SimpleImmutableEntry<>(centroids.get(min_index), min_distance);
+		return min_index;
+	}
+	
+	private int get_dominant_label(int[] label_counts) {
+		// label_counts[label] = how many images of the cluster have this label
+		int mode = -100, max_count = 0;
+		
+		for (int label = 0; label < label_counts.length; label++)
+			if (label_counts[label] > max_count) {
+				max_count = label_counts[label];
+				mode = label;
+			}
+		
+		return mode;
 	}
 	
 	private int get_dominant_label(List<Image> images) {
@@ -403,7 +594,7 @@ public class KmeansClassifier extends AbstractClassifier {
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
-		sb.append("Kmeans classifier with init_method = " + init_method + ", k = " + k + " p = " + p + "\n");
+		sb.append("Kmeans classifier with init_method = " + init_method + ", k = " + k + " " + metric + "\n");
 //		sb.append("Constructed centroids are : " + "\n" + clusters.keySet());
 		
 		return sb.toString();
@@ -1,85 +1,635 @@
 package classifiers;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import dataset.Dataset;
+import dataset.DatasetView;
+import dataset.FloatFeatures;
 import dataset.Image;
-
-import java.util.TreeMap;
+import dataset.QuantizedFeatures;
 
 public class KnnClassifier extends AbstractClassifier{
 	/*
 	 * Knn classifier
 	 * @params : k (int)
 	 *           p (int) which distance that will be used (p param in the Minkowski distance)
+	 *           	or metric (DistanceMetric) any other distance ( i.e DistanceMetric.COSINE ), double storage
+	 *           	without index only if it's not a Minkowski one
+	 *           storage (String) precision of the kept training vectors:
+	 *           		"double"  -> the training dataset itself ( default )
+	 *           		"float32" -> a float copy, 2x smaller
+	 *           		"int8"    -> a per-attribute int8 quantized copy, 8x smaller
+	 *           	with float32 / int8 the training dataset is not referenced anymore after train().
+	 *           index (NeighbourIndex) optional index built over the training dataset by train(), so predict
+	 *           	doesn't compare the query to every training vector ( i.e new KdTreeIndex() ). Double storage only.
+	 *           cache (DistanceCache) optional distances between the rows of a dataset: when the training dataset is
+	 *           	( a view of ) that dataset, the queries that are rows of it only look the distances up, no index.
+	 *           reduction (String) "none" ( default ) or a PrototypeReduction method ( "cnn", "enn", "enn+cnn", "fcnn" ):
+	 *           	train() keeps only a subset of the training dataset ( a view ), see get_compression_ratio().
 	 *           
 	 */
+	private static final int QUERY_BLOCK = 64, REFERENCE_BLOCK_BYTES = 1 << 17; // predict_batch tiles, 128 KB of training vectors fit in L2
+	private static final int ABANDONING_SAMPLE = 256; // training rows sampled to estimate the early abandoning of predict_batch
+	private static final double EXPANSION_READ_FRACTION = 0.27; // p = 2, predict_batch switches to the norm expansion above
+	
 	private int k, p; // p for which distance
+	private DistanceMetric metric; // the distance of the full scan of double rows, p is the one of the other paths
+	private String storage, reduction;
+	private double compression_ratio = 1; // training dataset size / kept rows, with a reduction
 	private Dataset training_dataset;
+	private FloatFeatures float_features;
+	private QuantizedFeatures quantized_features;
+	private NeighbourIndex index; // null -> full scan
+	private int[] order; // attributes by decreasing variance, for the early abandoning of the full scan ( double storage )
+	private DistanceCache cache;
+	private int[] cached_rows, cached_labels; // training rows in the cache and their labels, null if the cache isn't used
+	private final ThreadLocal<NeighbourHeap> neighbours = ThreadLocal.withInitial(NeighbourHeap::new); // per-thread scratch of predict
+	private final ThreadLocal<float[]> cached_distances = ThreadLocal.withInitial(() -> new float[0]); // same, row of the cache
 	
 	public KnnClassifier(int k) { // if p is not passed -> use euclidean distance. 
 		this.k = k;
 		this.p = 2;
+		this.metric = DistanceMetric.L2;
+		this.storage = "double";
+		this.reduction = "none";
 	}
 	
 	public KnnClassifier(int k, int p) {
 		this(k);
 		this.p = p;
+		this.metric = DistanceMetric.minkowski(p);
+	}
+	
+	public KnnClassifier(int k, DistanceMetric metric) {
+		this(k);
+		this.p = metric.get_p();
+		this.metric = metric;
+	}
+	
+	public KnnClassifier(int k, int p, String storage) {
+		this(k, p);
+		assert storage.toLowerCase().equals("double")
+			|| storage.toLowerCase().equals("float32")
+			|| storage.toLowerCase().equals("int8");
+		
+		this.storage = storage.toLowerCase();
+	}
+	
+	public KnnClassifier(int k, int p, String storage, String reduction) {
+		this(k, p, storage);
+		assert reduction.toLowerCase().equals("none") || PrototypeReduction.METHODS.contains(reduction.toLowerCase());
+		
+		this.reduction = reduction.toLowerCase();
+	}
+	
+	public KnnClassifier(int k, DistanceCache cache) {
+		this(k, cache.get_metric());
+		this.cache = cache;
+	}
+	
+	public KnnClassifier(int k, int p, NeighbourIndex index) {
+		this(k, p);
+		this.index = index;
 	}
 
 	@Override
 	public boolean train(Dataset training_dataset) {
 		assert training_dataset.size() > 0;
-		this.training_dataset = training_dataset;
+		
+		this.training_dataset = null;
+		this.float_features = null;
+		this.quantized_features = null;
+		this.order = null;
+		this.cached_rows = null;
+		this.cached_labels = null;
+		this.normalizer = training_dataset.get_normalizer();
+		
+		// the reduced precision storages and the indexes only know the Minkowski distances
+		assert p > 0 || (storage.equals("double") && index == null) : metric + " needs double storage and no index";
+		
+		if (!reduction.equals("none")) {
+			int original_size = training_dataset.size();
+			
+			training_dataset = new DatasetView(training_dataset, PrototypeReduction.reduce(training_dataset, metric, reduction));
+			compression_ratio = (double) original_size / training_dataset.size();
+		}
+		
+		if (storage.equals("float32"))
+			float_features = new FloatFeatures(training_dataset);
+		else if (storage.equals("int8"))
+			quantized_features = new QuantizedFeatures(training_dataset);
+		else {
+			this.training_dataset = training_dataset;
+			this.order = variance_order(training_dataset);
+		}
+		
+		if (index != null)
+			index.build(this, training_dataset, p);
+		else if (cache != null && this.training_dataset != null && cache.covers(training_dataset)) {
+			cached_rows = new int[training_dataset.size()];
+			cached_labels = new int[training_dataset.size()];
+			
+			for (int row = 0; row < cached_rows.length; row++) {
+				cached_rows[row] = DistanceCache.get_root_row(training_dataset, row);
+				cached_labels[row] = training_dataset.get_label(row);
+			}
+		}
+		
 		return true;
 	}
 
 	@Override
 	public int predict(Image img) {
+		if (cached_rows != null && cache.covers(training_dataset)) {
+			int query_row = cache.find_row(img);
+			
+			if (query_row != -1)
+				return predict_cached(query_row);
+		}
+		
+		return predict(query_values(img), 0);
+	}
+	
+	private int predict_cached(int query_row) {
+		NeighbourHeap heap = neighbours.get();
+		search_cached(query_row, this.k, heap);
+		
+		return heap.vote();
+	}
+	
+	private void search_cached(int query_row, int k, NeighbourHeap heap) {
+		// same as the full scan of search, with the distances of the cache ( query_row is a row of the cached dataset )
+		float[] distances = cached_distances.get();
+		
+		if (distances.length < cache.size()) {
+			distances = new float[cache.size()];
+			cached_distances.set(distances);
+		}
+		
+		cache.get_row(query_row, distances);
+		heap.reset(k);
+		
+		for (int row = 0; row < cached_rows.length; row++)
+			heap.offer(distances[cached_rows[row]], cached_labels[row], row);
+	}
+	
+	@Override
+	public int predict(double[] query, int query_off) {
 		/*
-		 * Key = distance between the passed img and an image from the training dataset
-		 * Value = the label of the corresponding training img
-		 * Using TreeMap (Red-Black tree) to keep the map sorted by Key
-		 * hence each inserted distance will be sorted automatically.
-		 * insertion complexity is O(log n)
+		 * Scan the training vectors ( row by row ) and keep the k nearest in a bounded max-heap,
+		 * then return the most frequent label among them, i.e : calculating the mode.
 		 * 
-		 * Getting the first element is done in O(1), thus avoiding the sorting...
+		 * The heap is the scratch buffer of the calling thread, so predict allocates nothing
+		 * ( the query of predict(Image) is normalized in a per-thread buffer too ).
 		 */
-		  
-		Map<Double, Integer> dist_array = new TreeMap<>();
 		
-		// calculating all distances between the passed img and images in training_dataset
-		// and storing the pair <Distance, Label> in the Treemap
-		for(Entry<Image, Integer> training_entry : this.training_dataset.entrySet()) 
-			dist_array.put( dist(img, training_entry.getKey(), this.p), training_entry.getValue() );
+		NeighbourHeap heap = neighbours.get();
+		search(query, query_off, this.k, heap);
 		
-		// getting the first kth labels from the treeMap
-		List<Integer> labels = new ArrayList<>();
-		int count = 0;
+		return heap.vote();
+	}
+	
+	private boolean search(double[] query, int query_off, int k, NeighbourHeap heap) {
+		// fills the heap with the k nearest training rows, returns true if it holds rank distances ( DistanceMetric.rank_dist )
+		heap.reset(k);
 		
-		for(Map.Entry<Double,Integer> entry : dist_array.entrySet()) {
-			if(count++ == this.k)
-				break;
+		if (index != null)
+			index.nearest(query, query_off, heap);
+		else if (float_features != null) {
+			float[] features = float_features.get_features();
+			int dim = float_features.get_dim();
+			
+			for(int row = 0; row < float_features.size(); row++) 
+				heap.offer( dist(query, query_off, features, float_features.get_offset(row), dim, this.p), float_features.get_label(row), row );
+		}
+		else if (quantized_features != null) {
+			for(int row = 0; row < quantized_features.size(); row++) 
+				heap.offer( dist(query, query_off, quantized_features, row, this.p), quantized_features.get_label(row), row );
+		}
+		else {
+			double[] features = training_dataset.get_features();
+			int dim = training_dataset.get_dim();
 			
-			labels.add(entry.getValue());
+			for(int row = 0; row < training_dataset.size(); row++) {
+				int row_off = training_dataset.get_offset(row);
+				
+				// most rows can't beat the k-th nearest so far, see DistanceMetric.abandons ( the heap holds rank distances here )
+				if (metric.abandons(query, query_off, features, row_off, order, heap.worst()))
+					continue;
+				
+				heap.offer( metric.rank_dist(query, query_off, features, row_off, dim), training_dataset.get_label(row), row );
+			}
+			
+			return true;
 		}
 		
-		// now labels is a list that contains the labels of the nearest kth neighbors
-		// returning the most frequent label, i.e : calculating the mode
-		int mode = labels.stream()
-						 .collect(Collectors.groupingBy(Function.identity(), Collectors.counting()))
-						 .entrySet()
-						 .stream()
-						 .max(Comparator.comparing(Entry::getValue))
-						 .get().getKey();
+		return false;
+	}
+	
+	public int[] nearest_neighbours(Dataset queries, int k_max, int[] labels, double[] distances) {
+		/*
+		 * The k_max nearest training rows of each query, nearest first: those of the row q of queries go to
+		 * [q * k_max, (q + 1) * k_max) of labels ( their labels ) and of distances ( their distances, not the rank form ).
+		 * One search per query whatever k, so the predictions of every k <= k_max can be derived from it
+		 * ( see Evaluation.k_sweep ). The rows at the same distance are sorted by training row, so the first k are the
+		 * neighbours new KnnClassifier(k, ...) keeps ( see NeighbourHeap ).
+		 * 
+		 * Returns the number of neighbours found for each query, fewer than k_max when there are fewer training rows
+		 * ( i.e kept by a reduction ): the entries after them are label -1 and distance NaN.
+		 */
+		assert k_max > 0;
+		assert labels.length >= queries.size() * k_max && distances.length >= queries.size() * k_max;
+		
+		NeighbourHeap heap = neighbours.get();
+		boolean cached = cached_rows != null && cache.covers(queries), same_space = queries.get_normalizer() == normalizer;
+		int[] rows = new int[k_max], found = new int[queries.size()];
+		
+		for (int q = 0; q < queries.size(); q++) {
+			boolean ranked = true;
+			
+			if (cached)
+				search_cached(DistanceCache.get_root_row(queries, q), k_max, heap);
+			else if (same_space)
+				ranked = search(queries.get_features(), queries.get_offset(q), k_max, heap);
+			else
+				ranked = search(query_values(queries.get_image(q)), 0, k_max, heap);
+			
+			found[q] = heap.size();
+			
+			// heap order -> increasing ( distance, row ), by insertion ( k_max is small )
+			for (int i = 0; i < found[q]; i++) {
+				int j = i;
+				
+				while (j > 0 && (heap.get_dist(rows[j - 1]) > heap.get_dist(i)
+						|| heap.get_dist(rows[j - 1]) == heap.get_dist(i) && heap.get_row(rows[j - 1]) > heap.get_row(i))) {
+					rows[j] = rows[j - 1];
+					j--;
+				}
+				
+				rows[j] = i;
+			}
+			
+			for (int i = 0; i < k_max; i++) {
+				labels[q * k_max + i] = i < found[q] ? heap.get_label(rows[i]) : -1;
+				distances[q * k_max + i] = i >= found[q] ? Double.NaN : ranked ? metric.to_dist(heap.get_dist(rows[i])) : heap.get_dist(rows[i]);
+			}
+		}
 		
-		return mode;
+		return found;
+	}
+	
+	public double[] leave_one_out_training_accuracies(Dataset dataset) {
+		/*
+		 * Training accuracies of a leave-one-out over dataset, from the cache: the i-th is the accuracy on the rows but i
+		 * of the classifier trained on them, the same as train() then accuracy() on that view, without doing it n times
+		 * ( n accuracies over n - 1 rows are O(n^3) lookups, even with the cache ).
+		 * 
+		 * The k + 1 nearest rows of each row r ( itself included ) are looked up once: the k + 1 smallest ( distance, row ),
+		 * the order NeighbourHeap keeps whatever the scan ( the rows of the view of iteration i are the rows of dataset but
+		 * i, in the same order ), with the float distances of the cache like predict. Without i, the neighbours of r are
+		 * its k nearest if i isn't among them, or its k + 1 nearest but i, ties included. So only the rows that have i among their k nearest change their prediction. O(n^2) lookups
+		 * and O(n k^2) votes in all.
+		 * 
+		 * null if the cache doesn't cover dataset, or with an index, a reduction or another storage ( use accuracy() ).
+		 */
+		if (cache == null || index != null || !storage.equals("double") || !reduction.equals("none") || !cache.covers(dataset))
+			return null;
+		
+		int size = dataset.size(), n_nearest = Math.min(this.k + 1, size), n_voters = Math.min(this.k, size - 1);
+		int[] labels = new int[size], root_rows = new int[size];
+		int[][] nearest = new int[size][n_nearest]; // rows of dataset, nearest first
+		
+		for (int row = 0; row < size; row++) {
+			labels[row] = dataset.get_label(row);
+			root_rows[row] = DistanceCache.get_root_row(dataset, row);
+		}
+		
+		NeighbourHeap heap = neighbours.get();
+		float[] distances = new float[cache.size()];
+		int[] sorted = new int[n_nearest];
+		
+		for (int r = 0; r < size; r++) {
+			cache.get_row(root_rows[r], distances);
+			heap.reset(n_nearest);
+			
+			for (int row = 0; row < size; row++)
+				heap.offer(distances[root_rows[row]], labels[row], row);
+			
+			// heap order -> increasing ( distance, row ), like nearest_neighbours
+			for (int i = 0; i < n_nearest; i++) {
+				int j = i;
+				
+				while (j > 0 && (heap.get_dist(sorted[j - 1]) > heap.get_dist(i)
+						|| heap.get_dist(sorted[j - 1]) == heap.get_dist(i) && heap.get_row(sorted[j - 1]) > heap.get_row(i))) {
+					sorted[j] = sorted[j - 1];
+					j--;
+				}
+				
+				sorted[j] = i;
+			}
+			
+			for (int i = 0; i < n_nearest; i++)
+				nearest[r][i] = heap.get_row(sorted[i]);
+		}
+		
+		// correct[r] with all the rows, change[i] = sum of ( correct without i - correct[r] ) over the rows r having i as neighbour
+		boolean[] correct = new boolean[size];
+		int[] change = new int[size], voters = new int[n_voters];
+		int n_correct = 0;
+		
+		for (int r = 0; r < size; r++) {
+			for (int i = 0; i < n_voters; i++)
+				voters[i] = labels[nearest[r][i]];
+			
+			correct[r] = NeighbourHeap.vote(voters, n_voters) == labels[r];
+			n_correct += correct[r] ? 1 : 0;
+			
+			for (int removed = 0; removed < n_voters; removed++) {
+				int i = nearest[r][removed];
+				
+				if (i == r)
+					continue; // r is the test row of that iteration, not a training one
+				
+				// the k nearest without i: the next one takes its place
+				for (int slot = 0, j = 0; j < n_nearest; j++)
+					if (j != removed && slot < n_voters)
+						voters[slot++] = labels[nearest[r][j]];
+				
+				change[i] += (NeighbourHeap.vote(voters, n_voters) == labels[r] ? 1 : 0) - (correct[r] ? 1 : 0);
+			}
+		}
+		
+		double[] accuracies = new double[size];
+		
+		for (int i = 0; i < size; i++)
+			accuracies[i] = (double) (n_correct - (correct[i] ? 1 : 0) + change[i]) / (size - 1);
+		
+		return accuracies;
+	}
+	
+	@Override
+	public int[] predict_batch(Dataset queries) {
+		// the queries of a dataset covered by the cache ( i.e a fold ) are answered by lookups only
+		if (cached_rows == null || !cache.covers(queries))
+			return super.predict_batch(queries);
+		
+		// by increasing row, so a cache on disk reads its tiles row of tiles by row of tiles
+		int[] query_rows = new int[queries.size()], predicted = new int[queries.size()];
+		for (int q = 0; q < query_rows.length; q++)
+			query_rows[q] = DistanceCache.get_root_row(queries, q);
+		
+		Integer[] by_row = IntStream.range(0, query_rows.length).boxed().toArray(Integer[]::new);
+		Arrays.sort(by_row, (a, b) -> Integer.compare(query_rows[a], query_rows[b]));
+		
+		for (int q : by_row)
+			predicted[q] = predict_cached(query_rows[q]);
+		
+		return predicted;
+	}
+	
+	@Override
+	protected int[] predict_batch(double[] x, int n_rows, int dim) {
+		/*
+		 * Blocked version of predict: the queries go by blocks of QUERY_BLOCK, and each block is compared to
+		 * REFERENCE_BLOCK_BYTES of training vectors at a time, so a block of training vectors is read from memory
+		 * once per block of queries ( it stays in cache meanwhile ) instead of once per query.
+		 * 
+		 * Each query has its own heap and sees the training rows in the same order as in predict ( with the same
+		 * early abandoning ), so the predictions are the same.
+		 * 
+		 * For p = 2 the rows can also be ranked with ||x||^2 + ||y||^2 - 2 x.y ( the norms computed once per batch ),
+		 * see scan_block_expanded: a dot product per row, without subtraction nor branch, exact after recheck. It only
+		 * pays when the early abandoning reads a good part of the attributes, so the first block of queries is scanned
+		 * with the early abandoning, and the next ones with the expansion if it read EXPANSION_READ_FRACTION of them
+		 * or more ( see abandoning_read_fraction ). Measured on 720 noisy test queries against 6300 noisy training
+		 * rows, expansion / abandoning time: SA 0.76, z-scored GFD 0.45 to 0.60, z-scored E34 0.76 to 1.02 ( read
+		 * fractions 0.27 to 0.45 ), but raw GFD 1.65 to 2.44, F0 1.28 to 1.37, raw E34 1.28 to 1.34 ( 0.06 to 0.26 ).
+		 */
+		
+		if (training_dataset == null || index != null)
+			return super.predict_batch(x, n_rows, dim);
+		
+		assert dim == training_dataset.get_dim();
+		
+		int size = training_dataset.size();
+		int reference_block = Math.max(1, REFERENCE_BLOCK_BYTES / (dim * Double.BYTES));
+		boolean expanded = false;
+		double[] query_norms = null, row_norms = null;
+		double max_row_norm = 0;
+		
+		NeighbourHeap[] heaps = new NeighbourHeap[QUERY_BLOCK];
+		Candidates[] candidates = new Candidates[QUERY_BLOCK];
+		for (int q = 0; q < QUERY_BLOCK; q++) {
+			heaps[q] = new NeighbourHeap();
+			candidates[q] = new Candidates();
+		}
+		
+		int[] predicted = new int[n_rows];
+		
+		for (int query_from = 0; query_from < n_rows; query_from += QUERY_BLOCK) {
+			int query_to = Math.min(n_rows, query_from + QUERY_BLOCK);
+			
+			for (int q = query_from; q < query_to; q++) {
+				heaps[q - query_from].reset(this.k);
+				candidates[q - query_from].size = 0;
+			}
+				
+			for (int row_from = 0; row_from < size; row_from += reference_block) {
+				int row_to = Math.min(size, row_from + reference_block);
+				
+				if (expanded)
+					scan_block_expanded(x, query_from, query_to, row_from, row_to, dim, query_norms, row_norms, max_row_norm, heaps, candidates);
+				else
+					scan_block(x, query_from, query_to, row_from, row_to, dim, heaps);
+			}
+			
+			for (int q = query_from; q < query_to; q++) {
+				if (expanded)
+					recheck(x, q * dim, dim, query_norms[q], max_row_norm, heaps[q - query_from], candidates[q - query_from]);
+				
+				predicted[q] = heaps[q - query_from].vote();
+			}
+			
+			if (query_from == 0 && query_to < n_rows && metric == DistanceMetric.L2
+					&& abandoning_read_fraction(x, query_from, query_to, dim, heaps) >= EXPANSION_READ_FRACTION) {
+				double[] features = training_dataset.get_features();
+				query_norms = new double[n_rows];
+				row_norms = new double[size];
+				expanded = true;
+				
+				for (int q = query_to; q < n_rows; q++)
+					query_norms[q] = dot(x, q * dim, x, q * dim, dim);
+				
+				for (int row = 0; row < size; row++) {
+					int row_off = training_dataset.get_offset(row);
+					row_norms[row] = dot(features, row_off, features, row_off, dim);
+					max_row_norm = Math.max(max_row_norm, row_norms[row]);
+				}
+			}
+		}
+		
+		return predicted;
+	}
+	
+	private void scan_block(double[] x, int query_from, int query_to, int row_from, int row_to, int dim, NeighbourHeap[] heaps) {
+		// queries [query_from, query_to) against the training rows [row_from, row_to), with early abandoning
+		double[] features = training_dataset.get_features();
+		
+		for (int q = query_from; q < query_to; q++) {
+			NeighbourHeap heap = heaps[q - query_from];
+			int query_off = q * dim;
+			
+			for (int row = row_from; row < row_to; row++) {
+				int row_off = training_dataset.get_offset(row);
+	
+				if (!metric.abandons(x, query_off, features, row_off, order, heap.worst()))
+					heap.offer( metric.rank_dist(x, query_off, features, row_off, dim), training_dataset.get_label(row), row );
+			}
+		}
+	}
+	
+	private double abandoning_read_fraction(double[] x, int query_from, int query_to, int dim, NeighbourHeap[] heaps) {
+		/*
+		 * Estimate of the fraction of the attributes the early abandoning reads per row, for the queries of a block that
+		 * was just scanned: on a sample of the training rows, with the final k-th nearest distance of each query
+		 * ( it is a bit higher during the scan ).
+		 */
+		double[] features = training_dataset.get_features();
+		int size = training_dataset.size(), step = Math.max(1, size / ABANDONING_SAMPLE);
+		long read = 0, rows = 0;
+		
+		for (int q = query_from; q < query_to; q++) {
+			double bound = heaps[q - query_from].worst() * (1 + 1e-9);
+			int query_off = q * dim;
+			
+			for (int row = 0; row < size; row += step) {
+				int row_off = training_dataset.get_offset(row), i = 0;
+				double sum = 0;
+				
+				while (i < dim) {
+					double diff = x[query_off + order[i]] - features[row_off + order[i]];
+					sum += diff * diff;
+					
+					if ((i++ & 3) == 3 && sum > bound)
+						break;
+				}
+				
+				read += i;
+				rows++;
+			}
+		}
+		
+		return (double) read / (rows * dim);
+	}
+	
+	private void scan_block_expanded(double[] x, int query_from, int query_to, int row_from, int row_to, int dim,
+			double[] query_norms, double[] row_norms, double max_row_norm, NeighbourHeap[] heaps, Candidates[] candidates) {
+		/*
+		 * Same as scan_block for p = 2, with ||x||^2 + ||y||^2 - 2 x.y: no subtraction per attribute and 4 rows at a time.
+		 * The heaps of the queries hold these approximations, which can be a bit off ( cancellation ), so every row that
+		 * may still be among the k nearest once they are exact is kept as a candidate for recheck: the approximation is
+		 * within margin / 2 of the exact squared distance, so a row of the exact k nearest is at most worst() + margin.
+		 */
+		double[] features = training_dataset.get_features();
+		
+		for (int q = query_from; q < query_to; q++) {
+			NeighbourHeap heap = heaps[q - query_from];
+			Candidates kept = candidates[q - query_from];
+			int query_off = q * dim;
+			double query_norm = query_norms[q], margin = margin(dim, query_norm, max_row_norm);
+			int row = row_from;
+			
+			for (; row + 4 <= row_to; row += 4) {
+				int off_0 = training_dataset.get_offset(row), off_1 = training_dataset.get_offset(row + 1),
+					off_2 = training_dataset.get_offset(row + 2), off_3 = training_dataset.get_offset(row + 3);
+				double dot_0 = 0, dot_1 = 0, dot_2 = 0, dot_3 = 0;
+				
+				for (int i = 0; i < dim; i++) {
+					double value = x[query_off + i];
+					dot_0 += value * features[off_0 + i];
+					dot_1 += value * features[off_1 + i];
+					dot_2 += value * features[off_2 + i];
+					dot_3 += value * features[off_3 + i];
+				}
+				
+				offer_approximation(query_norm + row_norms[row] - 2 * dot_0, row, margin, heap, kept);
+				offer_approximation(query_norm + row_norms[row + 1] - 2 * dot_1, row + 1, margin, heap, kept);
+				offer_approximation(query_norm + row_norms[row + 2] - 2 * dot_2, row + 2, margin, heap, kept);
+				offer_approximation(query_norm + row_norms[row + 3] - 2 * dot_3, row + 3, margin, heap, kept);
+			}
+			
+			for (; row < row_to; row++)
+				offer_approximation(query_norm + row_norms[row] - 2 * dot(x, query_off, features, training_dataset.get_offset(row), dim), row, margin, heap, kept);
+		}
+	}
+	
+	private void offer_approximation(double approximation, int row, double margin, NeighbourHeap heap, Candidates kept) {
+		heap.offer(approximation, 0, row);
+		
+		if (approximation <= heap.worst() + margin)
+			kept.add(approximation, row);
+	}
+	
+	private void recheck(double[] x, int query_off, int dim, double query_norm, double max_row_norm, NeighbourHeap heap, Candidates kept) {
+		// the exact k nearest among the candidates, offered by increasing row like the full scan: same neighbours as predict
+		double threshold = heap.worst() + margin(dim, query_norm, max_row_norm);
+		double[] features = training_dataset.get_features();
+		
+		heap.reset(this.k);
+		
+		for (int i = 0; i < kept.size; i++) {
+			if (kept.approximations[i] <= threshold) {
+				int row = kept.rows[i];
+				heap.offer( metric.rank_dist(x, query_off, features, training_dataset.get_offset(row), dim), training_dataset.get_label(row), row );
+			}
+		}
+	}
+	
+	private static double margin(int dim, double query_norm, double max_row_norm) {
+		/*
+		 * Twice the rounding error bound of the approximation against rank_dist ( both sums of dim products, about
+		 * (4 dim + 4) 2^-53 ( ||x||^2 + ||y||^2 ) ), with a x4 safety factor.
+		 */
+		return (dim + 8) * 0x1p-48 * (query_norm + max_row_norm);
+	}
+	
+	private static double dot(double[] x, int x_off, double[] y, int y_off, int dim) {
+		double sum = 0;
+		
+		for (int i = 0; i < dim; i++)
+			sum += x[x_off + i] * y[y_off + i];
+		
+		return sum;
+	}
+	
+	private static final class Candidates {
+		// rows of one query kept by scan_block_expanded, by increasing row, and their approximations
+		private double[] approximations = new double[16];
+		private int[] rows = new int[16];
+		private int size;
+		
+		void add(double approximation, int row) {
+			if (size == rows.length) {
+				approximations = Arrays.copyOf(approximations, 2 * size);
+				rows = Arrays.copyOf(rows, 2 * size);
+			}
+			
+			approximations[size] = approximation;
+			rows[size++] = row;
+		}
+	}
+	
+	public double get_compression_ratio() {
+		// size of the last training dataset / number of rows kept by the reduction ( 1 without )
+		return compression_ratio;
+	}
+	
+	public DistanceMetric get_metric() {
+		return metric;
+	}
+	
+	public NeighbourIndex get_index() {
+		return index;
 	}
 	
 	@Override
@@ -90,7 +640,19 @@ public class KnnClassifier extends AbstractClassifier{
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
-		sb.append("KNN Classifier with k = " + k + " and p = " + p);
+		sb.append("KNN Classifier with k = " + k + " and " + metric);
+		
+		if (!storage.equals("double"))
+			sb.append(" ( " + storage + " storage )");
+		
+		if (index != null)
+			sb.append(" ( " + index + " )");
+		
+		if (cache != null)
+			sb.append(" ( " + cache + " )");
+		
+		if (!reduction.equals("none"))
+			sb.append(" ( " + reduction + " reduction )");
 		
 		return sb.toString();
 	}
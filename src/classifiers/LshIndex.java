@@ -0,0 +1,395 @@
+package classifiers;
+import java.util.Arrays;
+import java.util.Random;
+
+public class LshIndex extends NeighbourIndex {
+	/*
+	 * Locality-sensitive hashing with p-stable projections ( Datar et al. 2004 ), APPROXIMATE nearest neighbours
+	 * for p = 1 ( Cauchy projections ) and p = 2 ( Gaussian projections ).
+	 *
+	 * Each of the n_tables hash tables hashes a vector x with n_projections functions h(x) = floor((a.x + b) / w),
+	 * a random p-stable vector a, b uniform in [0; w): close vectors ( in Lp ) tend to get the same n_projections
+	 * values, i.e the same bucket. A query only computes the exact distance ( AbstractClassifier.dist ) to the rows of
+	 * its buckets, and re-ranks them.
+	 *
+	 * Multi-probe ( Lv et al. 2007 ): besides its own bucket, each table also probes the n_probes - 1 buckets the
+	 * query is the most likely to have missed ( h values shifted by -1/+1 where the query is close to a boundary ),
+	 * so fewer tables are needed for the same recall.
+	 *
+	 * The tables are flat arrays ( bucket -> contiguous range of rows ), so memory and build time only depend on
+	 * the size of the training set: n_tables * ( 12 bytes per row + 4 bytes per bucket ) plus the projections.
+	 * If the buckets of a query hold less than k rows, the query falls back to a full scan.
+	 */
+	
+	private static final int MAX_PROJECTIONS = 32; // the probes are bitmasks over the 2 * n_projections perturbations
+	
+	private final int n_tables, n_projections, n_probes;
+	private final double bucket_width_factor;
+	private final long seed;
+	
+	private double bucket_width;
+	private double[] projections, offsets; // [table][projection][attribute] and [table][projection]
+	private int bucket_bits;
+	private int[][] bucket_start, bucket_rows; // per table, CSR: rows of bucket s are bucket_rows[bucket_start[s], bucket_start[s + 1])
+	private long[][] bucket_keys; // full key of each entry of bucket_rows, buckets are shared by several keys
+	
+	private final ThreadLocal<Scratch> scratches = ThreadLocal.withInitial(Scratch::new);
+	
+	public LshIndex() {
+		this(8, 8, 4, 0.5, 42);
+	}
+	
+	public LshIndex(int n_tables, int n_projections, int n_probes, double bucket_width_factor, long seed) {
+		/*
+		 * bucket_width_factor: w = factor * the average distance between random pairs of training rows, so the same
+		 * factor works whatever the scale of the representation ( the test images are not copies of the training
+		 * ones, so the distance to the nearest training row would be a bad scale ).
+		 */
+		assert n_tables > 0 && n_probes > 0 && bucket_width_factor > 0;
+		assert n_projections > 0 && n_projections <= MAX_PROJECTIONS;
+		
+		this.n_tables = n_tables;
+		this.n_projections = n_projections;
+		this.n_probes = n_probes;
+		this.bucket_width_factor = bucket_width_factor;
+		this.seed = seed;
+	}
+	
+	@Override
+	void build() {
+		if (p != 1 && p != 2)
+			throw new IllegalArgumentException("LSH with p-stable projections is only for p = 1 ( Cauchy ) or p = 2 ( Gaussian ), not p = " + p);
+		
+		Random random = new Random(seed);
+		int size = dataset.size(), dim = dataset.get_dim();
+		
+		bucket_width = bucket_width_factor * sample_distance(random);
+		if (bucket_width == 0)
+			bucket_width = 1; // all the rows are the same point
+		
+		projections = new double[n_tables * n_projections * dim];
+		offsets = new double[n_tables * n_projections];
+		
+		for (int i = 0; i < projections.length; i++)
+			projections[i] = p == 1 ? Math.tan(Math.PI * (random.nextDouble() - 0.5)) : random.nextGaussian();
+		
+		for (int i = 0; i < offsets.length; i++)
+			offsets[i] = random.nextDouble() * bucket_width;
+		
+		// about one bucket per row
+		bucket_bits = Math.max(4, 32 - Integer.numberOfLeadingZeros(size));
+		int n_buckets = 1 << bucket_bits;
+		
+		bucket_start = new int[n_tables][];
+		bucket_rows = new int[n_tables][];
+		bucket_keys = new long[n_tables][];
+		
+		double[] features = dataset.get_features();
+		long[] keys = new long[size];
+		int[] h = new int[n_projections];
+		double[] fractions = new double[n_projections];
+		
+		for (int table = 0; table < n_tables; table++) {
+			int[] start = new int[n_buckets + 1];
+			
+			for (int row = 0; row < size; row++) {
+				hash(features, dataset.get_offset(row), table, h, fractions);
+				keys[row] = key(h);
+				start[bucket(keys[row]) + 1]++;
+			}
+			
+			for (int s = 0; s < n_buckets; s++)
+				start[s + 1] += start[s];
+			
+			int[] next = Arrays.copyOf(start, n_buckets);
+			int[] rows = new int[size];
+			long[] entry_keys = new long[size];
+			
+			for (int row = 0; row < size; row++) {
+				int entry = next[bucket(keys[row])]++;
+				rows[entry] = row;
+				entry_keys[entry] = keys[row];
+			}
+			
+			bucket_start[table] = start;
+			bucket_rows[table] = rows;
+			bucket_keys[table] = entry_keys;
+		}
+	}
+	
+	private double sample_distance(Random random) {
+		// average distance between 1000 random pairs of rows
+		int size = dataset.size(), dim = dataset.get_dim(), n_pairs = 1000;
+		double[] features = dataset.get_features();
+		double sum = 0;
+		
+		for (int pair = 0; pair < n_pairs; pair++)
+			sum += metric.dist(features, dataset.get_offset(random.nextInt(size)), features, dataset.get_offset(random.nextInt(size)), dim, p);
+		
+		return sum / n_pairs;
+	}
+	
+	private void hash(double[] x, int x_off, int table, int[] h, double[] fractions) {
+		// h[j] = floor((a_j.x + b_j) / w), fractions[j] = where x is between the boundaries of h[j], in [0; 1)
+		int dim = dataset.get_dim();
+		
+		for (int j = 0; j < n_projections; j++) {
+			int function = table * n_projections + j, a_off = function * dim;
+			double dot = offsets[function];
+			
+			for (int i = 0; i < dim; i++)
+				dot += projections[a_off + i] * x[x_off + i];
+			
+			double value = dot / bucket_width, floor = Math.floor(value);
+			h[j] = (int) floor;
+			fractions[j] = value - floor;
+		}
+	}
+	
+	private static long key(int[] h) {
+		long key = 0;
+		
+		for (int value : h)
+			key = Long.rotateLeft((key ^ value) * 0x9E3779B97F4A7C15L, 29);
+		
+		return key;
+	}
+	
+	private int bucket(long key) {
+		return (int) ((key * 0xC2B2AE3D27D4EB4FL) >>> (64 - bucket_bits));
+	}
+	
+	@Override
+	int search(double[] query, int query_off, NeighbourHeap heap) {
+		Scratch scratch = scratches.get();
+		int stamp = scratch.next_stamp(dataset.size(), n_projections, n_probes);
+		double[] features = dataset.get_features();
+		int dim = dataset.get_dim(), evaluations = 0;
+		
+		for (int table = 0; table < n_tables; table++) {
+			hash(query, query_off, table, scratch.h, scratch.fractions);
+			scratch.sort_perturbations(n_projections);
+			
+			// probe 0 is the bucket of the query itself ( empty mask )
+			long mask = 0;
+			
+			for (int probe = 0; probe < n_probes; probe++) {
+				if (probe > 0) {
+					mask = scratch.next_probe(n_projections);
+					
+					if (mask == 0)
+						break; // no more valid perturbations
+				}
+				
+				long key = key(scratch.perturbed(mask, n_projections));
+				int[] rows = bucket_rows[table];
+				long[] keys = bucket_keys[table];
+				int s = bucket(key);
+				
+				for (int entry = bucket_start[table][s]; entry < bucket_start[table][s + 1]; entry++) {
+					int row = rows[entry];
+					
+					if (keys[entry] != key || scratch.visited[row] == stamp)
+						continue;
+					
+					scratch.visited[row] = stamp;
+					heap.offer(metric.dist(query, query_off, features, dataset.get_offset(row), dim, p), dataset.get_label(row), row);
+					evaluations++;
+				}
+			}
+		}
+		
+		if (heap.size() < heap.capacity()) {
+			// not enough candidates, full scan
+			heap.reset(heap.capacity());
+			
+			for (int row = 0; row < dataset.size(); row++)
+				heap.offer(metric.dist(query, query_off, features, dataset.get_offset(row), dim, p), dataset.get_label(row), row);
+			
+			evaluations += dataset.size();
+		}
+		
+		return evaluations;
+	}
+	
+	@Override
+	public String toString() {
+		return "LSH ( " + n_tables + " tables of " + n_projections + " projections, " + n_probes + " probes, w = "
+				+ String.format("%.4g", bucket_width) + " )";
+	}
+	
+	private static class Scratch {
+		/*
+		 * per-thread buffers of the searches, reused from one query to the next.
+		 *
+		 * The 2 * n_projections perturbations ( projection j, -1 or +1 ) are sorted by score, the squared distance
+		 * of the query to the corresponding boundary. A probe is a set of perturbations, a bitmask over that sorted
+		 * order, generated by increasing total score with the shift / expand heap of Lv et al.
+		 */
+		int[] visited = new int[0];
+		int stamp;
+		int[] h = new int[0], perturbed_h = new int[0];
+		double[] fractions = new double[0];
+		double[] scores = new double[0]; // sorted scores of the perturbations
+		int[] perturbations = new int[0]; // sorted perturbations, 2 * j ( -1 ) or 2 * j + 1 ( +1 )
+		double[] heap_scores = new double[0];
+		long[] heap_masks = new long[0];
+		int heap_size;
+		
+		int next_stamp(int size, int n_projections, int n_probes) {
+			if (visited.length < size) {
+				visited = new int[size];
+				stamp = 0;
+			}
+			
+			if (h.length != n_projections) {
+				h = new int[n_projections];
+				perturbed_h = new int[n_projections];
+				fractions = new double[n_projections];
+				scores = new double[2 * n_projections];
+				perturbations = new int[2 * n_projections];
+			}
+			
+			if (heap_masks.length < 2 * n_probes + 2) {
+				heap_scores = new double[2 * n_probes + 2];
+				heap_masks = new long[2 * n_probes + 2];
+			}
+			
+			if (++stamp == Integer.MAX_VALUE) {
+				Arrays.fill(visited, 0);
+				stamp = 1;
+			}
+			
+			return stamp;
+		}
+		
+		void sort_perturbations(int n_projections) {
+			for (int j = 0; j < n_projections; j++) {
+				perturbations[2 * j] = 2 * j;
+				scores[2 * j] = fractions[j] * fractions[j];
+				perturbations[2 * j + 1] = 2 * j + 1;
+				scores[2 * j + 1] = (1 - fractions[j]) * (1 - fractions[j]);
+			}
+			
+			// insertion sort, at most 64 elements
+			for (int i = 1; i < 2 * n_projections; i++) {
+				double score = scores[i];
+				int perturbation = perturbations[i], j = i - 1;
+				
+				while (j >= 0 && scores[j] > score) {
+					scores[j + 1] = scores[j];
+					perturbations[j + 1] = perturbations[j];
+					j--;
+				}
+				
+				scores[j + 1] = score;
+				perturbations[j + 1] = perturbation;
+			}
+			
+			heap_size = 0;
+			push(scores[0], 1L);
+		}
+		
+		long next_probe(int n_projections) {
+			// the valid perturbation set with the smallest score not returned yet, 0 if there is none
+			while (heap_size > 0) {
+				long mask = heap_masks[0];
+				pop();
+				
+				int max = 63 - Long.numberOfLeadingZeros(mask);
+				
+				if (max + 1 < 2 * n_projections) {
+					double max_score = scores[max], next_score = scores[max + 1];
+					push(score(mask) - max_score + next_score, (mask & ~(1L << max)) | (1L << (max + 1))); // shift
+					push(score(mask) + next_score, mask | (1L << (max + 1))); // expand
+				}
+				
+				if (is_valid(mask))
+					return mask;
+			}
+			
+			return 0;
+		}
+		
+		int[] perturbed(long mask, int n_projections) {
+			System.arraycopy(h, 0, perturbed_h, 0, n_projections);
+			
+			for (long bits = mask; bits != 0; bits &= bits - 1) {
+				int perturbation = perturbations[Long.numberOfTrailingZeros(bits)];
+				perturbed_h[perturbation >> 1] += (perturbation & 1) == 0 ? -1 : 1;
+			}
+			
+			return perturbed_h;
+		}
+		
+		private boolean is_valid(long mask) {
+			// a projection can't be shifted both ways
+			long seen = 0;
+			
+			for (long bits = mask; bits != 0; bits &= bits - 1) {
+				long projection = 1L << (perturbations[Long.numberOfTrailingZeros(bits)] >> 1);
+				
+				if ((seen & projection) != 0)
+					return false;
+				
+				seen |= projection;
+			}
+			
+			return true;
+		}
+		
+		private double score(long mask) {
+			double score = 0;
+			
+			for (long bits = mask; bits != 0; bits &= bits - 1)
+				score += scores[Long.numberOfTrailingZeros(bits)];
+			
+			return score;
+		}
+		
+		private void push(double score, long mask) {
+			// min-heap by score
+			if (heap_size == heap_masks.length) {
+				heap_scores = Arrays.copyOf(heap_scores, 2 * heap_size);
+				heap_masks = Arrays.copyOf(heap_masks, 2 * heap_size);
+			}
+			
+			int i = heap_size++;
+			
+			while (i > 0 && heap_scores[(i - 1) >>> 1] > score) {
+				heap_scores[i] = heap_scores[(i - 1) >>> 1];
+				heap_masks[i] = heap_masks[(i - 1) >>> 1];
+				i = (i - 1) >>> 1;
+			}
+			
+			heap_scores[i] = score;
+			heap_masks[i] = mask;
+		}
+		
+		private void pop() {
+			double score = heap_scores[--heap_size];
+			long mask = heap_masks[heap_size];
+			int i = 0;
+			
+			while (true) {
+				int child = 2 * i + 1;
+				
+				if (child >= heap_size)
+					break;
+				
+				if (child + 1 < heap_size && heap_scores[child + 1] < heap_scores[child])
+					child++;
+				
+				if (heap_scores[child] >= score)
+					break;
+				
+				heap_scores[i] = heap_scores[child];
+				heap_masks[i] = heap_masks[child];
+				i = child;
+			}
+			
+			heap_scores[i] = score;
+			heap_masks[i] = mask;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package classifiers;
+
+class NeighbourHeap {
+	/*
+	 * The k nearest neighbours seen so far, as a bounded max-heap over primitive arrays: the root is the farthest
+	 * of them, so a new candidate only has to beat the root ( O(log k) when it does, O(1) when it doesn't ).
+	 *
+	 * The neighbours are ordered by ( distance, row ): at the same distance the biggest row is the farthest one, so
+	 * the root is the biggest row among the farthest, and a candidate at the distance of the root only gets in with
+	 * a smaller row. The heap keeps the k smallest ( distance, row ) whatever the order the rows are offered in
+	 * ( full scan, blocks, indexes ), as long as a row is offered once.
+	 *
+	 * Meant to be reused from one query to the next ( reset ), one per thread: nothing is allocated once the
+	 * arrays reached k.
+	 */
+	
+	private double[] dists = new double[0];
+	private int[] labels = new int[0], rows = new int[0];
+	private int k, size;
+	
+	void reset(int k) {
+		assert k > 0;
+		
+		if (dists.length < k) {
+			dists = new double[k];
+			labels = new int[k];
+			rows = new int[k];
+		}
+		
+		this.k = k;
+		this.size = 0;
+	}
+	
+	boolean offer(double dist, int label, int row) {
+		// returns false if the candidate isn't among the k nearest so far
+		if (size < k) {
+			// sift up from the end
+			int i = size++;
+			
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				
+				if (!farther(dist, row, dists[parent], rows[parent]))
+					break;
+				
+				set(i, dists[parent], labels[parent], rows[parent]);
+				i = parent;
+			}
+			
+			set(i, dist, label, row);
+			return true;
+		}
+		
+		if (!farther(dists[0], rows[0], dist, row))
+			return false;
+		
+		// replace the root, then sift down
+		int i = 0;
+		
+		while (true) {
+			int child = 2 * i + 1;
+			
+			if (child >= size)
+				break;
+			
+			if (child + 1 < size && farther(dists[child + 1], rows[child + 1], dists[child], rows[child]))
+				child++;
+			
+			if (!farther(dists[child], rows[child], dist, row))
+				break;
+			
+			set(i, dists[child], labels[child], rows[child]);
+			i = child;
+		}
+		
+		set(i, dist, label, row);
+		return true;
+	}
+	
+	double worst() {
+		// distance a candidate has to beat to get in
+		return size < k ? Double.POSITIVE_INFINITY : dists[0];
+	}
+	
+	int size() {
+		return size;
+	}
+	
+	int capacity() {
+		return k;
+	}
+	
+	// i-th neighbour in heap order ( not sorted )
+	
+	double get_dist(int i) {
+		return dists[i];
+	}
+	
+	int get_label(int i) {
+		return labels[i];
+	}
+	
+	int get_row(int i) {
+		return rows[i];
+	}
+	
+	int vote() {
+		// most frequent label among the neighbours, the smallest label on ties
+		return vote(labels, size);
+	}
+	
+	static int vote(int[] labels, int count) {
+		/*
+		 * Most frequent of the first count labels, the smallest on ties ( -1 if count is 0 ). Counted by pairs, not in
+		 * an array indexed by the labels, so any label works ( i.e -1 for an unlabelled row ): count is k, small.
+		 */
+		int mode = -1, mode_votes = 0;
+		
+		for (int i = 0; i < count; i++) {
+			int votes = 0;
+			
+			for (int j = 0; j < count; j++)
+				if (labels[j] == labels[i])
+					votes++;
+			
+			if (votes > mode_votes || votes == mode_votes && labels[i] < mode) {
+				mode = labels[i];
+				mode_votes = votes;
+			}
+		}
+		
+		return mode;
+	}
+	
+	private static boolean farther(double dist, int row, double other_dist, int other_row) {
+		// ( dist, row ) after ( other_dist, other_row )
+		return dist > other_dist || dist == other_dist && row > other_row;
+	}
+	
+	private void set(int i, double dist, int label, int row) {
+		dists[i] = dist;
+		labels[i] = label;
+		rows[i] = row;
+	}
+}
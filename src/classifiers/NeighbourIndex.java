@@ -0,0 +1,106 @@
+package classifiers;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import dataset.Dataset;
+import dataset.DatasetListener;
+import dataset.DatasetView;
+import dataset.Image;
+
+public abstract class NeighbourIndex implements DatasetListener {
+	/*
+	 * Index over the training rows of a KnnClassifier, so the k nearest neighbours of a query can be found
+	 * without computing its distance to every row:
+	 * 
+	 * 		KnnClassifier knn = new KnnClassifier(k, p, new KdTreeIndex());
+	 * 
+	 * train() builds the index over the training dataset, predict() searches it instead of scanning the rows.
+	 * The distances are the ones of the classifier ( AbstractClassifier.dist with its p ).
+	 * 
+	 * Each index counts the distance evaluations of its searches, to see how much it saves over a full scan.
+	 * 
+	 * The index holds row ids of the dataset, so it is only valid for the rows it was built over: it listens to the
+	 * dataset and is updated when the dataset is refreshed ( Dataset.refresh() ), any other change of the rows since
+	 * ( add_datapoint, remove_datapoint, normalize... ) makes predict throw an IllegalStateException until the
+	 * classifier is trained again. An index built over a view can't follow its parent, it is stale after a refresh too.
+	 */
+	
+	protected AbstractClassifier metric;
+	protected Dataset dataset;
+	protected int p;
+	protected int version; // dataset.get_version() when the index was built / last updated
+	
+	private Dataset listened; // the root dataset, notified on refresh
+	
+	private final LongAdder evaluations = new LongAdder(), queries = new LongAdder();
+	
+	final void build(AbstractClassifier metric, Dataset dataset, int p) {
+		this.metric = metric;
+		this.dataset = dataset;
+		this.p = p;
+		
+		evaluations.reset();
+		queries.reset();
+		listen(dataset instanceof DatasetView ? ((DatasetView) dataset).get_parent() : dataset);
+		build();
+		version = dataset.get_version();
+	}
+	
+	final void nearest(double[] query, int query_off, NeighbourHeap heap) {
+		// fills the ( reset ) heap with the nearest neighbours of query
+		if (dataset.get_version() != version)
+			throw new IllegalStateException("The training dataset changed since the index was built, train the classifier again");
+		
+		evaluations.add(search(query, query_off, heap));
+		queries.increment();
+	}
+	
+	abstract void build();
+	
+	abstract int search(double[] query, int query_off, NeighbourHeap heap); // returns the number of distances computed
+	
+	void update() {
+		// the dataset was refreshed ( rows added, removed, re-read ): rebuilt over its new rows by default
+		build();
+	}
+	
+	@Override
+	public void on_refresh(Dataset refreshed, List<Image> added, List<Image> removed) {
+		if (refreshed != dataset)
+			return; // built over a view of it, stale now ( see nearest )
+		
+		update();
+		version = dataset.get_version();
+	}
+	
+	private void listen(Dataset root) {
+		// one dataset at a time, the one of the last build
+		if (listened == root)
+			return;
+		
+		if (listened != null)
+			listened.remove_listener(this);
+		
+		root.add_listener(this);
+		listened = root;
+	}
+	
+	public int size() {
+		return dataset == null ? 0 : dataset.size();
+	}
+	
+	public double get_average_evaluations() {
+		// distances computed per query, since the last train()
+		long n_queries = queries.sum();
+		
+		return n_queries == 0 ? 0 : (double) evaluations.sum() / n_queries;
+	}
+	
+	public double get_saved_fraction() {
+		// fraction of the distances of a full scan that were not computed
+		return size() == 0 ? 0 : 1 - get_average_evaluations() / size();
+	}
+	
+	@Override
+	public abstract String toString();
+}
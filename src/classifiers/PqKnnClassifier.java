@@ -0,0 +1,347 @@
+package classifiers;
+import java.util.Arrays;
+import java.util.Random;
+
+import dataset.Dataset;
+import dataset.Image;
+import dataset.Representation;
+
+public class PqKnnClassifier extends AbstractClassifier {
+	/*
+	 * Knn classifier over product-quantized training vectors ( Jegou et al. 2011, IVF-PQ ):
+	 * a training vector is kept as n_subspaces bytes instead of dim doubles.
+	 *
+	 * The attributes are cut into n_subspaces contiguous slices, each slice has its own codebook of ( at most 256 )
+	 * centroids learned by KmeansClassifier on the slices of the training vectors, and a vector is encoded as the
+	 * index of the nearest centroid of each of its slices.
+	 *
+	 * Since dist^p = sum over the slices of the sum of |diff|^p, a query is compared to the codes with lookup tables
+	 * ( asymmetric distance, the query itself is not quantized ): table[s][c] = that sum between slice s of the query
+	 * and centroid c of codebook s, so the distance to a code is n_subspaces additions.
+	 *
+	 * @params : k, p  as in KnnClassifier
+	 *           n_subspaces (int) bytes per training vector
+	 *           n_centroids (int) per codebook, <= 256
+	 *           n_lists (int) optional coarse inverted file: the training vectors are split in n_lists clusters
+	 *           	( KmeansClassifier again ), each one encoded as its residual to the centroid of its cluster, and a
+	 *           	query only scans the codes of its n_probes nearest clusters. 0 -> no inverted file, every code is scanned
+	 *           n_probes (int) clusters scanned per query
+	 *           rerank (int) the rerank nearest codes are re-ranked with the exact distance, which keeps a reference to
+	 *           	the training dataset. 0 -> vote on the nearest codes directly, the training dataset is not referenced
+	 *           	anymore after train()
+	 *
+	 * The codebooks are learned on a sample of at most MAX_TRAINING_SAMPLE training vectors.
+	 */
+	
+	public static final int MAX_CENTROIDS = 256; // the codes are bytes
+	private static final int MAX_TRAINING_SAMPLE = 10000;
+	private static final long MAX_ITER = 25;
+	
+	private final int k, p, n_subspaces, n_centroids, n_lists, n_probes, rerank;
+	
+	private Dataset training_dataset; // only kept for the re-rank
+	private int dim, size;
+	private int[] subspace_start; // slice s is [subspace_start[s], subspace_start[s + 1])
+	private double[] codebooks; // centroid c of codebook s at c * dim + subspace_start[s], the slices of a codeword matrix
+	private int[] codebook_sizes; // KmeansClassifier can return less than n_centroids centroids
+	private double[] coarse_centroids; // [list][attribute], null without inverted file
+	private int[] list_start, list_rows; // CSR: the entries of list l are [list_start[l], list_start[l + 1])
+	private byte[] codes; // [entry][subspace]
+	private int[] labels; // [entry]
+	
+	private final ThreadLocal<Scratch> scratches = ThreadLocal.withInitial(Scratch::new);
+	
+	public PqKnnClassifier(int k, int p) {
+		this(k, p, 8, MAX_CENTROIDS, 0, 1, 0);
+	}
+	
+	public PqKnnClassifier(int k, int p, int n_subspaces, int n_centroids, int n_lists, int n_probes, int rerank) {
+		assert k > 0 && p > 0;
+		assert n_subspaces > 0 && n_centroids > 0 && n_centroids <= MAX_CENTROIDS;
+		assert n_lists >= 0 && n_probes > 0 && rerank >= 0;
+		
+		this.k = k;
+		this.p = p;
+		this.n_subspaces = n_subspaces;
+		this.n_centroids = n_centroids;
+		this.n_lists = n_lists;
+		this.n_probes = n_probes;
+		this.rerank = rerank;
+	}
+	
+	@Override
+	public boolean train(Dataset training_dataset) {
+		assert training_dataset.size() > 0;
+		assert n_subspaces <= training_dataset.get_dim();
+		
+		this.training_dataset = rerank > 0 ? training_dataset : null;
+		this.normalizer = training_dataset.get_normalizer();
+		
+		dim = training_dataset.get_dim();
+		size = training_dataset.size();
+		
+		subspace_start = new int[n_subspaces + 1];
+		for (int s = 0; s <= n_subspaces; s++)
+			subspace_start[s] = s * dim / n_subspaces;
+		
+		double[] features = training_dataset.get_features();
+		int[] sample = sample_rows(training_dataset, new Random(42));
+		
+		// STEP 1: coarse clusters ( inverted file ), every row goes to the list of its nearest coarse centroid
+		int n_coarse = 1;
+		int[] list_of_row = new int[size];
+		coarse_centroids = null;
+		
+		if (n_lists > 0) {
+			double[] vectors = new double[sample.length * dim];
+			for (int j = 0; j < sample.length; j++)
+				System.arraycopy(features, training_dataset.get_offset(sample[j]), vectors, j * dim, dim);
+			
+			coarse_centroids = kmeans(vectors, sample.length, dim, n_lists, training_dataset.get_representation_type());
+			n_coarse = coarse_centroids.length / dim;
+			
+			for (int row = 0; row < size; row++)
+				list_of_row[row] = nearest(features, training_dataset.get_offset(row), coarse_centroids, n_coarse, 0, dim);
+		}
+		
+		// STEP 2: one codebook per slice, learned on the slices of the ( residual ) sample vectors
+		codebooks = new double[n_centroids * dim];
+		codebook_sizes = new int[n_subspaces];
+		double[] residual = new double[dim];
+		
+		for (int s = 0; s < n_subspaces; s++) {
+			int from = subspace_start[s], sub_dim = subspace_start[s + 1] - from;
+			double[] slices = new double[sample.length * sub_dim];
+			
+			for (int j = 0; j < sample.length; j++) {
+				residual(features, training_dataset.get_offset(sample[j]), list_of_row[sample[j]], residual);
+				System.arraycopy(residual, from, slices, j * sub_dim, sub_dim);
+			}
+			
+			double[] centroids = kmeans(slices, sample.length, sub_dim, n_centroids, training_dataset.get_representation_type());
+			codebook_sizes[s] = centroids.length / sub_dim;
+			
+			for (int c = 0; c < codebook_sizes[s]; c++)
+				System.arraycopy(centroids, c * sub_dim, codebooks, c * dim + from, sub_dim);
+		}
+		
+		// STEP 3: encode every row, the entries are grouped by list
+		list_start = new int[n_coarse + 1];
+		for (int row = 0; row < size; row++)
+			list_start[list_of_row[row] + 1]++;
+		
+		for (int l = 0; l < n_coarse; l++)
+			list_start[l + 1] += list_start[l];
+		
+		int[] next = list_start.clone();
+		list_rows = new int[size];
+		labels = new int[size];
+		codes = new byte[size * n_subspaces];
+		
+		for (int row = 0; row < size; row++) {
+			int entry = next[list_of_row[row]]++;
+			list_rows[entry] = row;
+			labels[entry] = training_dataset.get_label(row);
+			
+			residual(features, training_dataset.get_offset(row), list_of_row[row], residual);
+			
+			for (int s = 0; s < n_subspaces; s++) {
+				int from = subspace_start[s], to = subspace_start[s + 1];
+				codes[entry * n_subspaces + s] = (byte) nearest(residual, 0, codebooks, codebook_sizes[s], from, to - from);
+			}
+		}
+		
+		return true;
+	}
+	
+	private int[] sample_rows(Dataset dataset, Random random) {
+		// partial Fisher-Yates shuffle of the row ids
+		int[] rows = new int[dataset.size()];
+		for (int row = 0; row < rows.length; row++)
+			rows[row] = row;
+		
+		int n = Math.min(rows.length, MAX_TRAINING_SAMPLE);
+		
+		for (int j = 0; j < n; j++) {
+			int other = j + random.nextInt(rows.length - j);
+			int row = rows[j];
+			rows[j] = rows[other];
+			rows[other] = row;
+		}
+		
+		return Arrays.copyOf(rows, n);
+	}
+	
+	private double[] kmeans(double[] vectors, int n, int vector_dim, int n_clusters, String representation_type) {
+		// centroids ( flat ) found by KmeansClassifier over the n vectors, can be less than n_clusters ( duplicates )
+		Dataset dataset = new Dataset();
+		
+		for (int j = 0; j < n; j++) {
+			double[] values = Arrays.copyOfRange(vectors, j * vector_dim, (j + 1) * vector_dim);
+			Image img = new Image(new Representation(values, representation_type), 1);
+			
+			if (dataset.find_row(img) == -1) // i.e the constant slices of SA
+				dataset.add_datapoint(img, 1);
+		}
+		
+		KmeansClassifier kmeans = new KmeansClassifier(Math.min(n_clusters, dataset.size()), p, MAX_ITER);
+		kmeans.train(dataset);
+		
+		double[] centroids = new double[kmeans.get_clusters().size() * vector_dim];
+		int c = 0;
+		
+		for (Centroid centroid : kmeans.get_clusters().keySet())
+			System.arraycopy(centroid.get_values(), 0, centroids, vector_dim * c++, vector_dim);
+		
+		return centroids;
+	}
+	
+	private void residual(double[] x, int x_off, int list, double[] out) {
+		// x minus the centroid of its list ( x itself without inverted file )
+		for (int i = 0; i < dim; i++)
+			out[i] = coarse_centroids == null ? x[x_off + i] : x[x_off + i] - coarse_centroids[list * dim + i];
+	}
+	
+	private int nearest(double[] x, int x_off, double[] centroids, int n, int from, int sub_dim) {
+		// nearest of the n centroids ( rows of length dim ), over the attributes [from, from + sub_dim)
+		int best = 0;
+		double best_sum = Double.POSITIVE_INFINITY;
+		
+		for (int c = 0; c < n; c++) {
+			double sum = reduced_dist(x, x_off + from, centroids, c * dim + from, sub_dim);
+			
+			if (sum < best_sum) {
+				best_sum = sum;
+				best = c;
+			}
+		}
+		
+		return best;
+	}
+	
+	private double reduced_dist(double[] x, int x_off, double[] y, int y_off, int length) {
+		// sum of |diff|^p, same ranking as the Minkowski distance without the root
+		double sum = 0, diff;
+		
+		for (int i = 0; i < length; i++) {
+			diff = Math.abs(x[x_off + i] - y[y_off + i]);
+			sum += (p == 1) ? diff : (p == 2) ? diff * diff : Math.pow(diff, p);
+		}
+		
+		return sum;
+	}
+	
+	@Override
+	public int predict(Image img) {
+		return predict(query_values(img), 0);
+	}
+	
+	@Override
+	public int predict(double[] query, int query_off) {
+		/*
+		 * Scan the codes of the probed lists with the lookup tables, keep the nearest ones in a bounded heap
+		 * ( rerank of them, or k without re-rank ), then the exact distances of the re-rank decide the k nearest.
+		 */
+		
+		Scratch scratch = scratches.get();
+		scratch.ensure(dim, n_subspaces * MAX_CENTROIDS);
+		NeighbourHeap candidates = scratch.candidates;
+		candidates.reset(rerank > 0 ? Math.max(rerank, k) : k);
+		
+		if (coarse_centroids == null)
+			scan_list(0, query, query_off, scratch);
+		else {
+			NeighbourHeap lists = scratch.lists;
+			lists.reset(n_probes);
+			
+			for (int l = 0; l < list_start.length - 1; l++)
+				lists.offer(reduced_dist(query, query_off, coarse_centroids, l * dim, dim), 0, l);
+			
+			for (int i = 0; i < lists.size(); i++)
+				scan_list(lists.get_row(i), query, query_off, scratch);
+		}
+		
+		if (rerank == 0)
+			return candidates.vote();
+		
+		NeighbourHeap heap = scratch.neighbours;
+		heap.reset(k);
+		double[] features = training_dataset.get_features();
+		
+		for (int i = 0; i < candidates.size(); i++) {
+			int row = candidates.get_row(i);
+			heap.offer( dist(query, query_off, features, training_dataset.get_offset(row), dim, this.p), training_dataset.get_label(row), row );
+		}
+		
+		return heap.vote();
+	}
+	
+	private void scan_list(int list, double[] query, int query_off, Scratch scratch) {
+		// lookup tables of the query residual to this list, then n_subspaces additions per code
+		double[] residual = scratch.residual, table = scratch.table;
+		residual(query, query_off, list, residual);
+		
+		for (int s = 0; s < n_subspaces; s++) {
+			int from = subspace_start[s], sub_dim = subspace_start[s + 1] - from;
+			
+			for (int c = 0; c < codebook_sizes[s]; c++)
+				table[s * MAX_CENTROIDS + c] = reduced_dist(residual, from, codebooks, c * dim + from, sub_dim);
+		}
+		
+		NeighbourHeap candidates = scratch.candidates;
+		
+		for (int entry = list_start[list]; entry < list_start[list + 1]; entry++) {
+			int code_off = entry * n_subspaces;
+			double sum = 0;
+			
+			for (int s = 0; s < n_subspaces; s++)
+				sum += table[s * MAX_CENTROIDS + (codes[code_off + s] & 0xFF)];
+			
+			candidates.offer(sum, labels[entry], list_rows[entry]);
+		}
+	}
+	
+	public long get_memory_bytes() {
+		// codes + labels + row ids + lists + codebooks + coarse centroids ( the re-rank also keeps the training dataset )
+		long bytes = (long) codes.length + (long) size * 2 * Integer.BYTES + (long) list_start.length * Integer.BYTES;
+		bytes += (long) codebooks.length * Double.BYTES;
+		
+		if (coarse_centroids != null)
+			bytes += (long) coarse_centroids.length * Double.BYTES;
+		
+		return bytes;
+	}
+	
+	@Override
+	public void reset() {
+		// nothing to reset here, the next training rebuilds everything.
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("PQ KNN Classifier with k = " + k + " and p = " + p + " ( " + n_subspaces + " bytes per vector, " + n_centroids + " centroids per codebook");
+		
+		if (n_lists > 0)
+			sb.append(", " + n_lists + " lists, " + n_probes + " probed");
+		
+		if (rerank > 0)
+			sb.append(", exact re-rank of the " + rerank + " nearest codes");
+		
+		return sb.append(" )").toString();
+	}
+	
+	private static class Scratch {
+		// per-thread buffers of predict, reused from one query to the next
+		final NeighbourHeap candidates = new NeighbourHeap(), lists = new NeighbourHeap(), neighbours = new NeighbourHeap();
+		double[] residual = new double[0], table = new double[0];
+		
+		void ensure(int dim, int table_size) {
+			if (residual.length != dim)
+				residual = new double[dim];
+			
+			if (table.length != table_size)
+				table = new double[table_size];
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package classifiers;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import dataset.Dataset;
+
+public final class PrototypeReduction {
+	/*
+	 * Reduction of the training set of a KNN ( the prototypes ), so predict compares the query to fewer rows:
+	 *
+	 * 		"cnn"     Hart's condensed nearest neighbour: passes over the rows, a row is kept if the rows kept so far
+	 * 		          misclassify it ( 1-NN ), until a pass keeps nothing new. Every training row is then well classified
+	 * 		          by the 1-NN of the kept ones. Depends on the order of the rows, and keeps the noisy ones.
+	 * 		"enn"     Wilson's edited nearest neighbour: drops the rows misclassified by their k = 3 nearest other rows
+	 * 		          ( noise, overlapping classes ), keeps most of the dataset.
+	 * 		"enn+cnn" editing then condensing, the usual combination: the noisy rows are not condensed.
+	 * 		"fcnn"    fast condensed nearest neighbour ( Angiulli, 2005 ), a greedy version of cnn that doesn't depend on
+	 * 		          the order: starts from the row nearest to the mean of each class, then each kept row adds its nearest
+	 * 		          misclassified row ( among the rows it is the nearest kept row of ), until every row is well classified.
+	 * 		          Only the distances to the rows added in the last iteration are computed.
+	 *
+	 * The condensed sets are made for the 1-NN: with a bigger k the few rows kept around a class can be outvoted by the
+	 * other classes, so the accuracy can drop a lot.
+	 *
+	 * Returns the kept rows of the dataset, in increasing order ( i.e for a DatasetView ).
+	 *
+	 * The nearest rows are the smallest ( distance, row ), like the KnnClassifier trained on the kept rows sees them
+	 * ( see NeighbourHeap ), so the rows kept or dropped are classified here as it classifies them.
+	 */
+	
+	public static final List<String> METHODS = Arrays.asList("cnn", "enn", "enn+cnn", "fcnn");
+	
+	private static final int EDITING_K = 3;
+	
+	// Static class, doesn't make any sense to instantiate it
+	private PrototypeReduction() {}
+	
+	public static int[] reduce(Dataset dataset, DistanceMetric metric, String method) {
+		assert METHODS.contains(method) : "unknown reduction " + method;
+		
+		int[] all_rows = IntStream.range(0, dataset.size()).toArray();
+		
+		if (all_rows.length < 2)
+			return all_rows;
+		
+		int[] order = AbstractClassifier.variance_order(dataset);
+		
+		if (method.equals("cnn"))
+			return condense(dataset, metric, order, all_rows);
+		else if (method.equals("enn"))
+			return edit(dataset, metric, order);
+		else if (method.equals("enn+cnn"))
+			return condense(dataset, metric, order, edit(dataset, metric, order));
+		
+		return fast_condense(dataset, metric, order);
+	}
+	
+	private static int[] condense(Dataset dataset, DistanceMetric metric, int[] order, int[] rows) {
+		// Hart, over the given rows of the dataset
+		double[] features = dataset.get_features();
+		int dim = dataset.get_dim();
+		
+		List<Integer> kept = new ArrayList<>();
+		boolean[] is_kept = new boolean[dataset.size()];
+		
+		kept.add(rows[0]);
+		is_kept[rows[0]] = true;
+		
+		boolean changed = true;
+		
+		while (changed) {
+			changed = false;
+			
+			for (int row : rows) {
+				if (is_kept[row])
+					continue;
+				
+				// 1-NN of the row among the kept rows, the smallest row on ties ( kept is not in row order )
+				int offset = dataset.get_offset(row), nearest = -1;
+				double best = Double.POSITIVE_INFINITY;
+				
+				for (int prototype : kept) {
+					int prototype_off = dataset.get_offset(prototype);
+					
+					if (metric.abandons(features, offset, features, prototype_off, order, best))
+						continue;
+					
+					double distance = metric.rank_dist(features, offset, features, prototype_off, dim);
+					
+					if (distance < best || distance == best && prototype < nearest) {
+						best = distance;
+						nearest = prototype;
+					}
+				}
+				
+				assert nearest != -1 : "no nearest kept row of row " + row + " ( NaN distances ? )";
+				
+				if (dataset.get_label(nearest) != dataset.get_label(row)) {
+					kept.add(row);
+					is_kept[row] = true;
+					changed = true;
+				}
+			}
+		}
+		
+		return kept.stream().mapToInt(Integer::intValue).sorted().toArray();
+	}
+	
+	private static int[] edit(Dataset dataset, DistanceMetric metric, int[] order) {
+		// Wilson: majority vote of the EDITING_K nearest other rows ( the heap keeps the smallest ( distance, row ), smallest label on ties, like predict )
+		double[] features = dataset.get_features();
+		int size = dataset.size(), dim = dataset.get_dim();
+		
+		NeighbourHeap heap = new NeighbourHeap();
+		List<Integer> kept = new ArrayList<>();
+		
+		for (int row = 0; row < size; row++) {
+			int offset = dataset.get_offset(row);
+			heap.reset(Math.min(EDITING_K, size - 1));
+			
+			for (int other = 0; other < size; other++) {
+				int other_off = dataset.get_offset(other);
+				
+				if (other == row || metric.abandons(features, offset, features, other_off, order, heap.worst()))
+					continue;
+				
+				heap.offer(metric.rank_dist(features, offset, features, other_off, dim), dataset.get_label(other), other);
+			}
+			
+			if (heap.vote() == dataset.get_label(row))
+				kept.add(row);
+		}
+		
+		// nothing left ( only noise ? ) -> no editing
+		return kept.isEmpty() ? IntStream.range(0, size).toArray() : kept.stream().mapToInt(Integer::intValue).toArray();
+	}
+	
+	private static int[] fast_condense(Dataset dataset, DistanceMetric metric, int[] order) {
+		// FCNN1: nearest[row] is the nearest kept row of each row, updated with the rows added in each iteration only
+		double[] features = dataset.get_features();
+		int size = dataset.size(), dim = dataset.get_dim();
+		
+		int[] nearest = new int[size];
+		double[] nearest_distance = new double[size];
+		boolean[] is_kept = new boolean[size];
+		
+		Arrays.fill(nearest, -1);
+		Arrays.fill(nearest_distance, Double.POSITIVE_INFINITY);
+		
+		List<Integer> kept = new ArrayList<>(), added = class_centers(dataset, metric);
+		
+		while (!added.isEmpty()) {
+			for (int prototype : added)
+				is_kept[prototype] = true;
+			
+			kept.addAll(added);
+			
+			for (int row = 0; row < size; row++) {
+				if (is_kept[row])
+					continue;
+				
+				int offset = dataset.get_offset(row);
+				
+				for (int prototype : added) {
+					int prototype_off = dataset.get_offset(prototype);
+					
+					if (metric.abandons(features, offset, features, prototype_off, order, nearest_distance[row]))
+						continue;
+					
+					double distance = metric.rank_dist(features, offset, features, prototype_off, dim);
+					
+					if (distance < nearest_distance[row] || distance == nearest_distance[row] && prototype < nearest[row]) {
+						nearest_distance[row] = distance;
+						nearest[row] = prototype;
+					}
+				}
+			}
+			
+			// for each kept row, its nearest misclassified row among the rows it is the nearest kept row of
+			Map<Integer, Integer> representatives = new LinkedHashMap<>();
+			
+			for (int row = 0; row < size; row++) {
+				if (is_kept[row] || dataset.get_label(nearest[row]) == dataset.get_label(row))
+					continue;
+				
+				Integer representative = representatives.get(nearest[row]);
+				
+				if (representative == null || nearest_distance[row] < nearest_distance[representative])
+					representatives.put(nearest[row], row);
+			}
+			
+			added = new ArrayList<>(representatives.values());
+		}
+		
+		return kept.stream().mapToInt(Integer::intValue).sorted().toArray();
+	}
+	
+	private static List<Integer> class_centers(Dataset dataset, DistanceMetric metric) {
+		// the row nearest to the mean of its class, for each class
+		int size = dataset.size(), dim = dataset.get_dim();
+		double[] features = dataset.get_features();
+		
+		Map<Integer, double[]> means = new LinkedHashMap<>();
+		Map<Integer, Integer> counts = new LinkedHashMap<>();
+		
+		for (int row = 0; row < size; row++) {
+			double[] mean = means.computeIfAbsent(dataset.get_label(row), label -> new double[dim]);
+			
+			for (int i = 0, offset = dataset.get_offset(row); i < dim; i++)
+				mean[i] += features[offset + i];
+			
+			counts.merge(dataset.get_label(row), 1, Integer::sum);
+		}
+		
+		for (Map.Entry<Integer, double[]> entry : means.entrySet())
+			for (int i = 0; i < dim; i++)
+				entry.getValue()[i] /= counts.get(entry.getKey());
+		
+		Map<Integer, Integer> centers = new LinkedHashMap<>();
+		Map<Integer, Double> center_distances = new LinkedHashMap<>();
+		
+		for (int row = 0; row < size; row++) {
+			int label = dataset.get_label(row);
+			double distance = metric.rank_dist(features, dataset.get_offset(row), means.get(label), 0, dim);
+			
+			if (!centers.containsKey(label) || distance < center_distances.get(label)) {
+				centers.put(label, row);
+				center_distances.put(label, distance);
+			}
+		}
+		
+		return new ArrayList<>(centers.values());
+	}
+}
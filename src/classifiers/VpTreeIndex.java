@@ -0,0 +1,204 @@
+package classifiers;
+import java.util.Random;
+
+public class VpTreeIndex extends NeighbourIndex {
+	/*
+	 * Vantage-point tree: a metric index, it only uses the distances between the vectors ( never the attributes ),
+	 * so unlike the KD-tree it doesn't care about the dimension itself ( SA, GFD, F0 ).
+	 *
+	 * Each node picks a vantage point ( a random row of the node ) and splits the other rows at the median of their
+	 * distance to it: the closest half goes inside, the other half outside. Each child keeps the range [lo; hi] of
+	 * the distances of its rows to the vantage point.
+	 *
+	 * Exact search, for every p >= 1 since the Minkowski distance is then a metric ( triangle inequality ):
+	 * with d = dist(query, vantage point), every row x of a child is at least max(lo - d, d - hi) away from the
+	 * query, so the child is skipped if that can't beat the current k-th nearest.
+	 *
+	 * The nodes are stored in flat arrays, node n covers rows[start[n], end[n]), its vantage point is rows[start[n]].
+	 */
+	
+	public static final int DEFAULT_LEAF_SIZE = 8;
+	
+	private final int leaf_size;
+	private final long seed;
+	
+	private int[] rows; // dataset rows, permuted so that each node covers a contiguous range
+	private int[] start, end, inside, outside; // inside = -1 for a leaf
+	private double[] inside_lo, inside_hi, outside_lo, outside_hi;
+	private double[] distances; // build scratch, distance of rows[j] to the vantage point of the node being built
+	private int n_nodes;
+	
+	public VpTreeIndex() {
+		this(DEFAULT_LEAF_SIZE, 42);
+	}
+	
+	public VpTreeIndex(int leaf_size, long seed) {
+		// seed of the choice of the vantage points, so the tree ( and its cost ) is reproducible
+		assert leaf_size > 0;
+		this.leaf_size = leaf_size;
+		this.seed = seed;
+	}
+	
+	@Override
+	void build() {
+		int size = dataset.size();
+		
+		rows = new int[size];
+		for (int row = 0; row < size; row++)
+			rows[row] = row;
+		
+		int max_nodes = 2 * size + 1; // with leaf_size 1 a child can be empty
+		start = new int[max_nodes];
+		end = new int[max_nodes];
+		inside = new int[max_nodes];
+		outside = new int[max_nodes];
+		inside_lo = new double[max_nodes];
+		inside_hi = new double[max_nodes];
+		outside_lo = new double[max_nodes];
+		outside_hi = new double[max_nodes];
+		distances = new double[size];
+		n_nodes = 0;
+		
+		build_node(0, size, new Random(seed));
+		distances = null;
+	}
+	
+	private int build_node(int from, int to, Random random) {
+		int node = n_nodes++;
+		start[node] = from;
+		end[node] = to;
+		inside[node] = -1;
+		
+		if (to - from <= leaf_size)
+			return node;
+		
+		// random vantage point, moved to the front of the range
+		swap(from, from + random.nextInt(to - from));
+		
+		double[] features = dataset.get_features();
+		int dim = dataset.get_dim(), vantage_offset = dataset.get_offset(rows[from]);
+		
+		for (int j = from + 1; j < to; j++)
+			distances[j] = metric.dist(features, vantage_offset, features, dataset.get_offset(rows[j]), dim, p);
+		
+		int mid = (from + 1 + to) >>> 1;
+		select(from + 1, to, mid);
+		
+		inside_lo[node] = min(from + 1, mid);
+		inside_hi[node] = max(from + 1, mid);
+		outside_lo[node] = min(mid, to);
+		outside_hi[node] = max(mid, to);
+		
+		inside[node] = build_node(from + 1, mid, random);
+		outside[node] = build_node(mid, to, random);
+		
+		return node;
+	}
+	
+	private void select(int from, int to, int nth) {
+		// quickselect on distances ( rows follow ): rank nth at nth, smaller before, bigger after
+		int lo = from, hi = to - 1;
+		
+		while (lo < hi) {
+			double pivot = distances[(lo + hi) >>> 1];
+			int i = lo, j = hi;
+			
+			while (i <= j) {
+				while (distances[i] < pivot)
+					i++;
+				while (distances[j] > pivot)
+					j--;
+				
+				if (i <= j)
+					swap(i++, j--);
+			}
+			
+			if (nth <= j)
+				hi = j;
+			else if (nth >= i)
+				lo = i;
+			else
+				break;
+		}
+	}
+	
+	private void swap(int i, int j) {
+		int row = rows[i];
+		rows[i] = rows[j];
+		rows[j] = row;
+		
+		double distance = distances[i];
+		distances[i] = distances[j];
+		distances[j] = distance;
+	}
+	
+	private double min(int from, int to) {
+		double min = Double.POSITIVE_INFINITY;
+		for (int j = from; j < to; j++)
+			min = Math.min(min, distances[j]);
+		
+		return min;
+	}
+	
+	private double max(int from, int to) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int j = from; j < to; j++)
+			max = Math.max(max, distances[j]);
+		
+		return max;
+	}
+	
+	@Override
+	int search(double[] query, int query_off, NeighbourHeap heap) {
+		return search_node(0, query, query_off, dataset.get_features(), heap);
+	}
+	
+	private int search_node(int node, double[] query, int query_off, double[] features, NeighbourHeap heap) {
+		int dim = dataset.get_dim();
+		
+		if (inside[node] == -1) {
+			for (int j = start[node]; j < end[node]; j++) {
+				int row = rows[j];
+				heap.offer(metric.dist(query, query_off, features, dataset.get_offset(row), dim, p), dataset.get_label(row), row);
+			}
+			
+			return end[node] - start[node];
+		}
+		
+		int vantage_point = rows[start[node]];
+		double d = metric.dist(query, query_off, features, dataset.get_offset(vantage_point), dim, p);
+		heap.offer(d, dataset.get_label(vantage_point), vantage_point);
+		
+		int evaluations = 1;
+		
+		// the most promising child first, so the k-th nearest distance shrinks before the other one is checked
+		boolean inside_first = d < outside_lo[node];
+		int first = inside_first ? inside[node] : outside[node], second = inside_first ? outside[node] : inside[node];
+		
+		if (can_contain_better(node, first, d, heap))
+			evaluations += search_node(first, query, query_off, features, heap);
+		
+		if (can_contain_better(node, second, d, heap))
+			evaluations += search_node(second, query, query_off, features, heap);
+		
+		return evaluations;
+	}
+	
+	private boolean can_contain_better(int node, int child, double d, NeighbourHeap heap) {
+		// triangle inequality lower bound of the distances to the rows of the child,
+		// minus a tiny slack so the rounding of the distances never prunes an exact tie
+		if (start[child] == end[child])
+			return false;
+		
+		boolean is_inside = child == inside[node];
+		double lo = is_inside ? inside_lo[node] : outside_lo[node], hi = is_inside ? inside_hi[node] : outside_hi[node];
+		double bound = Math.max(lo - d, d - hi);
+		
+		return bound - 1e-12 * (d + Math.abs(hi)) <= heap.worst();
+	}
+	
+	@Override
+	public String toString() {
+		return "VP-tree ( leaf size " + leaf_size + ", " + n_nodes + " nodes )";
+	}
+}
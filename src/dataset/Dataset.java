@@ -1,16 +1,29 @@
 package dataset;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class Dataset {
 	/*
@@ -20,9 +33,27 @@ public class Dataset {
 	 * 
 	 * Type of representation that will be used, will be determined by the first
 	 * inserted image.
+	 * 
+	 * Storage is columnar: all the feature vectors live in one row-major double[] (features),
+	 * row i occupying [i * dim, (i + 1) * dim), with a parallel int[] of labels and the Image of each row.
+	 * The Map like API (keySet, entrySet, get_dataset) is only a view over these arrays, classifiers
+	 * should scan get_features() directly instead of unboxing the images one by one.
+	 * 
+	 * The rows are in insertion order until a removal: remove_datapoint moves the last row into the hole, so
+	 * nothing else moves ( O(d log n) with the statistics below, whatever the size of the dataset ).
 	 */
 	
-	private Map<Image, Integer> dataset;
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private double[] features; // row-major feature matrix, count * dim values are used
+	private int[] labels; // label of each row
+	private Image[] images; // image of each row (row id -> Image)
+	private int[] stratum_slots; // position of the image of each row in its stratum ( see stratums )
+	private FingerprintIndex index; // vector fingerprint -> row id, to detect duplicates and for get/remove
+	private int count, dim;
+	private int version; // incremented on each change of the rows, so the views and indexes can tell they are stale
+	private int rows_version; // same, but not on an append: only when existing rows are removed, moved or rewritten
+	
 	private String representation_type;
 	private String path;
 	private boolean first_datapoint; // useful for the next insertion after the rep_type is determined
@@ -31,17 +62,43 @@ public class Dataset {
 	 * very useful for Kmeans enhanced-random initialization step, keeping the range = (min, max) 
 	 * for each attribute, so we can generate the first centroids accordingly
 	 * 
-	 * So now each attribute i will range between [mins.get(i); maxs.get(i)] 
+	 * So now each attribute i will range between [mins[i]; maxs[i]] 
+	 * 
+	 * The statistics support removals without rescanning the rows: the min ( max ) of each attribute is the top of
+	 * an indexed heap of the rows by that attribute ( see ExtremumHeaps ), a row is added or removed in O(log n) per
+	 * attribute. sums and sums_sq give the mean and variance of each attribute.
 	 */	
-	private List<Double> mins, maxs; // will be initialized in the first insertion
+	private ExtremumHeaps min_heaps, max_heaps; // will be initialized in the first insertion
+	private double[] sums, sums_sq;
+	
+	/*
+	 * Normalization ( see normalize() ): when set, the rows of features are the normalized values of the images,
+	 * and so are the statistics above. The images themselves always keep the raw values.
+	 */
+	private Normalizer normalizer;
 	
 	
 	private Map<Integer, List<Image>> stratums; // useful to construct a stratified CV or split_train-test 
 	
+	/*
+	 * Incremental refresh ( see refresh() ): the state of each file of the loaded directory,
+	 * so we only re-read what was added or changed since.
+	 */
+	private String source_dir;
+	private Map<String, FileState> tracked_files; // absolute path -> state at the last (re)load
+	private List<DatasetListener> listeners;
+	
 	
 	public Dataset() {
-		dataset = new LinkedHashMap<>(); // to preserve order of insertion
+		features = new double[0];
+		labels = new int[0];
+		images = new Image[0];
+		index = new FingerprintIndex();
+		count = 0;
+		dim = 0;
 		stratums = new LinkedHashMap<>();
+		tracked_files = new HashMap<>();
+		listeners = new ArrayList<>();
 		representation_type = "";
 		path = "";
 		first_datapoint = true;
@@ -53,8 +110,36 @@ public class Dataset {
 		load_dataset_from_directory(dir_path);
 	}
 	
+	public Dataset(String dir_path, int n_threads) throws IOException {
+		this();
+		this.path = dir_path;
+		load_dataset_from_directory(dir_path, n_threads);
+	}
+	
 	public Map<Image, Integer> get_dataset() {
-		return dataset;
+		// read-only view, in row order
+		return new AbstractMap<Image, Integer>() {
+			@Override
+			public Set<Map.Entry<Image, Integer>> entrySet() {
+				return Dataset.this.entrySet();
+			}
+			
+			@Override
+			public boolean containsKey(Object key) {
+				return key instanceof Image && find_row((Image) key) != -1;
+			}
+			
+			@Override
+			public Integer get(Object key) {
+				int row = key instanceof Image ? find_row((Image) key) : -1;
+				return row == -1 ? null : get_label(row);
+			}
+			
+			@Override
+			public int size() {
+				return Dataset.this.size();
+			}
+		};
 	}
 	
 	public Map<Integer, List<Image>> get_stratums() {
@@ -66,47 +151,124 @@ public class Dataset {
 	}
 	
 	public List<Double> get_mins() {
-		return mins;
+		if (count == 0)
+			return null;
+		
+		List<Double> list = new ArrayList<>(dim);
+		for (int i = 0; i < dim; i++)
+			list.add(get_min(i));
+		
+		return list;
 	}
 	
 	public List<Double> get_maxs() {
-		return maxs;
+		if (count == 0)
+			return null;
+		
+		List<Double> list = new ArrayList<>(dim);
+		for (int i = 0; i < dim; i++)
+			list.add(get_max(i));
+		
+		return list;
+	}
+	
+	// Columnar accessors, used in the hot loops of the classifiers
+	
+	public double[] get_features() {
+		// the backing array, only the first size() * get_dim() values are meaningful
+		return features;
+	}
+	
+	public int get_offset(int row) {
+		// where the row starts in get_features()
+		return row * dim;
+	}
+	
+	public int get_dim() {
+		return dim;
+	}
+	
+	public int get_label(int row) {
+		return labels[row];
+	}
+	
+	public Image get_image(int row) {
+		return images[row];
+	}
+	
+	public double get_min(int attribute) {
+		return count == 0 ? Double.NaN : features[min_heaps.top(attribute) * dim + attribute];
+	}
+	
+	public double get_max(int attribute) {
+		return count == 0 ? Double.NaN : features[max_heaps.top(attribute) * dim + attribute];
+	}
+	
+	public Normalizer get_normalizer() {
+		// null if the feature matrix holds the raw values
+		return normalizer;
+	}
+	
+	public double get_mean(int attribute) {
+		return sums[attribute] / count;
+	}
+	
+	public double get_variance(int attribute) {
+		// population variance, clamped since the cancellation can make it slightly negative
+		double mean = get_mean(attribute);
+		return Math.max(0, sums_sq[attribute] / count - mean * mean);
 	}
 	
 	public boolean add_datapoint(Image img, int label) {
 		assert label >= 1 && label <= 9;
 		
 		if (first_datapoint) {
-			// add the datapoint to the dataset
-			dataset.put(img, label);
-			
-			// construct the corresponding strata
-			stratums.put(label, new ArrayList<Image>() {{ add(img); }});
-			
 			// define the default representation type for this dataset, so that we accept only the same reps from now on
 			representation_type = img.get_representation_type();
+			dim = img.get_values().length;
+			
+			if (normalizer != null && normalizer.get_dim() != dim)
+				normalizer = null; // the dataset was emptied, and now gets another kind of vectors
+			
+			// the dimension is known now, (re)allocate the columns accordingly
+			features = new double[INITIAL_CAPACITY * dim];
+			labels = new int[INITIAL_CAPACITY];
+			images = new Image[INITIAL_CAPACITY];
+			stratum_slots = new int[INITIAL_CAPACITY];
+			
+			// construct our statistics to keep track of min/max/sum of each attribute
+			min_heaps = new ExtremumHeaps(dim, false);
+			max_heaps = new ExtremumHeaps(dim, true);
+			sums = new double[dim];
+			sums_sq = new double[dim];
 			
 			first_datapoint = false;
 			
-			// construct our mins_maxs list to keep track of min/max of each attribute
-			mins = new ArrayList<>(img.get_representation().get_data());
-			maxs = new ArrayList<>(img.get_representation().get_data());
+			// add the datapoint to the dataset
+			append_row(img, label);
+			
+			// construct the corresponding strata
+			stratums.put(label, new ArrayList<Image>() {{ add(img); }});
+			stratum_slots[0] = 0;
+			
+			add_to_statistics(0);
 			
 			return true;
 		}
 		else {
 			if (img.get_representation_type().equals(representation_type)) {
-				if (!dataset.containsKey(img)) {
-					dataset.put(img, label);
+				if (row_of(img) == -1) {
+					append_row(img, label);
 					
 					// update stratums
 					if(!stratums.containsKey(label))
 						stratums.put(label, new ArrayList<>());
 					
+					stratum_slots[count - 1] = stratums.get(label).size();
 					stratums.get(label).add(img);
 					
-					// update ranges of mins/maxs for each attribute
-					update_range(img);
+					// update the statistics of each attribute
+					add_to_statistics(count - 1);
 					
 					return true;
 				}
@@ -122,16 +284,54 @@ public class Dataset {
 	}
 	
 	public boolean remove_datapoint(Image img) {
-		if (dataset.containsKey(img)) {
-			dataset.remove(img);
-			return true;
+		int row = row_of(img);
+		
+		if (row == -1)
+			return false;
+		
+		int last = count - 1;
+		
+		index.remove(img.get_fingerprint(), row);
+		remove_from_statistics(row);
+		remove_from_stratum(row);
+		
+		if (row != last) {
+			// the last row fills the hole, the other rows don't move
+			System.arraycopy(features, last * dim, features, row * dim, dim);
+			labels[row] = labels[last];
+			images[row] = images[last];
+			stratum_slots[row] = stratum_slots[last];
+			
+			index.move(images[row].get_fingerprint(), last, row);
+			min_heaps.move(last, row);
+			max_heaps.move(last, row);
 		}
 		
-		return false;
+		count--;
+		images[count] = null;
+		version++;
+		rows_version++;
+		
+		if (count == 0) {
+			// everything is gone, the next image will define the representation type again
+			representation_type = "";
+			first_datapoint = true;
+		}
+		
+		return true;
 	}
 	
 	public void reset() {
-		dataset.clear();
+		Arrays.fill(images, 0, count, null);
+		index.clear();
+		stratums.clear();
+		tracked_files.clear();
+		source_dir = null;
+		normalizer = null;
+		count = 0;
+		version++;
+		rows_version++;
+		dim = 0;
 		representation_type = "";
 		first_datapoint = true;
 	}
@@ -142,66 +342,307 @@ public class Dataset {
 		
 		reset();
 		
-		List<File> filesInFolder = Files.walk(Paths.get(dir_path), 1) // 1 is depth 
-								        .filter(Files::isRegularFile)
-								        .map(Path::toFile)
-								        .collect(Collectors.toList());
+		List<File> filesInFolder = list_files(dir_path);
 		Image new_img;
-		
-		if (filesInFolder.size() == 0)
-			throw new IOException("Empty directory");
+		source_dir = dir_path;
 		
 		for (File file : filesInFolder) 	
 			try {
 				new_img = new Image(new Representation(file.getAbsolutePath()));
-				add_datapoint(new_img, new_img.get_label());
+				track(file, add_datapoint(new_img, new_img.get_label()) ? new_img : null);
 				
 			} catch (BadRepresentationFileException e) {
 				System.err.println("Skipping " + file.getName() + " -> Bad format");
+				track(file, null);
 			}	
 		
 	}
 	
+	public void load_dataset_from_directory(String dir_path, int n_threads) throws IOException {
+		// same as above, but the files are parsed concurrently on a pool of n_threads threads
+		assert n_threads > 0;
+		
+		ExecutorService pool = Executors.newFixedThreadPool(n_threads);
+		
+		try {
+			load_dataset_from_directory(dir_path, pool);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	public void load_dataset_from_directory(String dir_path, ExecutorService pool) throws IOException {
+		/*
+		 * Parallel loading: the representation files are parsed on the passed pool, but the images are
+		 * inserted on the calling thread in the order of the files, so the result ( order, stratums, mins/maxs )
+		 * is exactly the one of the serial loading.
+		 * 
+		 * Bad files are skipped and reported all at once at the end.
+		 */
+		
+		reset();
+		
+		List<File> filesInFolder = list_files(dir_path);
+		source_dir = dir_path;
+		List<Future<Image>> parsed_imgs = new ArrayList<>(filesInFolder.size());
+		
+		for (File file : filesInFolder)
+			parsed_imgs.add(pool.submit(() -> new Image(new Representation(file.getAbsolutePath()))));
+		
+		List<String> skipped = new ArrayList<>();
+		
+		for (int i = 0; i < filesInFolder.size(); i++) 
+			try {
+				Image new_img = parsed_imgs.get(i).get();
+				track(filesInFolder.get(i), add_datapoint(new_img, new_img.get_label()) ? new_img : null);
+				
+			} catch (ExecutionException e) {
+				if (!(e.getCause() instanceof BadRepresentationFileException))
+					throw new IOException("Couldn't load " + filesInFolder.get(i).getName(), e.getCause());
+				
+				skipped.add(filesInFolder.get(i).getName());
+				track(filesInFolder.get(i), null);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while loading " + dir_path);
+			}
+		
+		if (!skipped.isEmpty())
+			System.err.println("Skipped " + skipped.size() + " file(s) -> Bad format : " + skipped);
+	}
+	
+	public void load_dataset_from_packed_file(String packed_path) throws IOException {
+		// reset the dataset and load a directory that was packed by PackedDataset ( memory-mapped, no text parsing )
+		
+		reset();
+		PackedDataset.read_into(this, packed_path);
+		
+		if (path.isEmpty())
+			path = packed_path;
+	}
+	
+	public boolean refresh() throws IOException {
+		/*
+		 * Incremental reload of the directory this dataset was loaded from:
+		 * 		- new files are read and added
+		 * 		- deleted files are removed
+		 * 		- changed files ( last modified time or size ) are re-read
+		 * Untouched files are not read again. Stratums and mins/maxs are kept correct, and the listeners
+		 * get the delta ( i.e the neighbour indexes built over this dataset, see NeighbourIndex ).
+		 * 
+		 * returns true if the dataset changed.
+		 */
+		
+		if (source_dir == null)
+			throw new IllegalStateException("This dataset wasn't loaded from a directory");
+		
+		List<Image> added = new ArrayList<>(), removed = new ArrayList<>();
+		List<File> to_read = new ArrayList<>();
+		Set<String> present = new HashSet<>();
+		
+		for (File file : list_files(source_dir)) {
+			String file_path = file.getAbsolutePath();
+			FileState state = tracked_files.get(file_path);
+			present.add(file_path);
+			
+			if (state == null)
+				to_read.add(file);
+			else if (state.last_modified != file.lastModified() || state.length != file.length()) {
+				if (state.img != null)
+					removed.add(state.img);
+				
+				to_read.add(file);
+			}
+		}
+		
+		// deleted files
+		for (Iterator<Map.Entry<String, FileState>> it = tracked_files.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, FileState> entry = it.next();
+			
+			if (!present.contains(entry.getKey())) {
+				if (entry.getValue().img != null)
+					removed.add(entry.getValue().img);
+				
+				it.remove();
+			}
+		}
+		
+		for (Image img : removed)
+			remove_datapoint(img); // false if it was already removed by hand
+		
+		for (File file : to_read)
+			try {
+				Image new_img = new Image(new Representation(file.getAbsolutePath()));
+				boolean inserted = add_datapoint(new_img, new_img.get_label());
+				
+				if (inserted)
+					added.add(new_img);
+				
+				track(file, inserted ? new_img : null);
+			} catch (BadRepresentationFileException e) {
+				System.err.println("Skipping " + file.getName() + " -> Bad format");
+				track(file, null);
+			}
+		
+		if (added.isEmpty() && removed.isEmpty())
+			return false;
+		
+		for (DatasetListener listener : listeners)
+			listener.on_refresh(this, added, removed);
+		
+		return true;
+	}
+	
+	public Normalizer normalize(String method) {
+		/*
+		 * Fit a Normalizer ( "min-max" or "z-score" ) on the raw values of this dataset and apply it in place.
+		 * The classifiers trained on this dataset apply it to their queries, and a test dataset can be put in the
+		 * same space with normalize(train.get_normalizer()). The same goes for views ( see DatasetView ), i.e the
+		 * splits of Evaluation.split_dataset, without changing this dataset.
+		 */
+		assert count > 0;
+		
+		if (normalizer != null)
+			denormalize(); // fit on the raw values
+		
+		normalize(new Normalizer(this, method));
+		
+		return normalizer;
+	}
+	
+	public void normalize(Normalizer normalizer) {
+		// apply an already fitted normalizer in place ( the raw values are taken from the images )
+		if (normalizer.get_dim() != dim)
+			throw new IllegalArgumentException("The normalizer was fitted on " + normalizer.get_dim() 
+												+ " attributes, this dataset has " + dim);
+		
+		this.normalizer = normalizer;
+		rebuild_rows();
+	}
+	
+	public void denormalize() {
+		// back to the raw values
+		if (normalizer == null)
+			return;
+		
+		normalizer = null;
+		rebuild_rows();
+	}
+	
+	public void add_listener(DatasetListener listener) {
+		listeners.add(listener);
+	}
+	
+	public void remove_listener(DatasetListener listener) {
+		listeners.remove(listener);
+	}
+	
 	public void shuffle() {
 		/*
-		 * Shuffle dataset -> Map<Image, Integer>
+		 * Shuffle the rows of the dataset
 		 * 
 		 */
 		
-		assert dataset != null && dataset.size() > 0;
-		// Shuffle the keys
-		List<Image> imgs_list = new ArrayList<>(dataset.keySet());
-		Collections.shuffle(imgs_list);
+		assert count > 0;
+		// Shuffle the row ids
+		List<Integer> order = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			order.add(i);
+		
+		Collections.shuffle(order);
+		
+		// construct the new shuffled columns
+		double[] shuffled_features = new double[features.length];
+		int[] shuffled_labels = new int[labels.length], shuffled_slots = new int[stratum_slots.length];
+		Image[] shuffled_images = new Image[images.length];
 		
-		// construct the new shuffled map
-		Map<Image, Integer> shuffled_dataset = new LinkedHashMap<>();
-		imgs_list.forEach(img -> shuffled_dataset.put(img, dataset.get(img)));
+		index.clear();
 		
-		// overwrite the old dataset with the new shuffled one
+		for (int i = 0; i < count; i++) {
+			int from = order.get(i);
+			System.arraycopy(features, from * dim, shuffled_features, i * dim, dim);
+			shuffled_labels[i] = labels[from];
+			shuffled_images[i] = images[from];
+			shuffled_slots[i] = stratum_slots[from];
+			index.put(shuffled_images[i].get_fingerprint(), i);
+		}
 		
-		dataset = shuffled_dataset;
+		// overwrite the old columns with the new shuffled ones
+		features = shuffled_features;
+		labels = shuffled_labels;
+		images = shuffled_images;
+		stratum_slots = shuffled_slots;
+		min_heaps.rebuild(features, count);
+		max_heaps.rebuild(features, count);
+		version++;
+		rows_version++;
 	}
 	
 	// Delegate
 	
 	public Set<Image> keySet() {
-		return dataset.keySet();
+		return new AbstractSet<Image>() {
+			@Override
+			public Iterator<Image> iterator() {
+				return new RowIterator<Image>() {
+					@Override
+					Image at(int row) {
+						return get_image(row);
+					}
+				};
+			}
+			
+			@Override
+			public boolean contains(Object o) {
+				return o instanceof Image && find_row((Image) o) != -1;
+			}
+			
+			@Override
+			public int size() {
+				return Dataset.this.size();
+			}
+		};
 	}
 	
 	public Set<Map.Entry<Image,Integer>> entrySet() {
-		return dataset.entrySet();
+		return new AbstractSet<Map.Entry<Image, Integer>>() {
+			@Override
+			public Iterator<Map.Entry<Image, Integer>> iterator() {
+				return new RowIterator<Map.Entry<Image, Integer>>() {
+					@Override
+					Map.Entry<Image, Integer> at(int row) {
+						return new AbstractMap.SimpleImmutableEntry<>(get_image(row), get_label(row));
+					}
+				};
+			}
+			
+			@Override
+			public int size() {
+				return Dataset.this.size();
+			}
+		};
 	}
 	
 	public int get(Image img) {
-		return dataset.get(img);
+		int row = find_row(img);
+		
+		if (row == -1)
+			throw new NoSuchElementException("Image not in dataset");
+		
+		return get_label(row);
+	}
+	
+	public int find_row(Image img) {
+		// row id of img in this dataset, -1 if it isn't in
+		return row_of(img);
 	}
 	
 	public int size() {
-		return dataset.size();
+		return count;
 	}
 	
 	public boolean isEmpty() {
-		return dataset.isEmpty();
+		return size() == 0;
 	}
 	
 	@Override
@@ -218,18 +659,161 @@ public class Dataset {
 		return sb.toString();
 	}
 	
-	private void update_range(Image img) {
-		/*
-		 * Update the range for each feature ( min, max )
-		 */
-		List<Double> img_data = img.get_representation().get_data();
+	static List<File> list_files(String dir_path) throws IOException {
+		List<File> filesInFolder;
+		
+		try (Stream<Path> walk = Files.walk(Paths.get(dir_path), 1)) { // 1 is depth 
+			filesInFolder = walk.filter(Files::isRegularFile)
+						        .map(Path::toFile)
+						        .collect(Collectors.toList());
+		}
+		
+		if (filesInFolder.size() == 0)
+			throw new IOException("Empty directory");
+		
+		return filesInFolder;
+	}
+	
+	private void append_row(Image img, int label) {
+		double[] values = img.get_values();
+		assert values.length == dim;
+		
+		if (count == labels.length) {
+			// grow all the columns together
+			int capacity = Math.max(INITIAL_CAPACITY, count * 2);
+			features = Arrays.copyOf(features, capacity * dim);
+			labels = Arrays.copyOf(labels, capacity);
+			images = Arrays.copyOf(images, capacity);
+			stratum_slots = Arrays.copyOf(stratum_slots, capacity);
+		}
+		
+		if (normalizer != null)
+			normalizer.transform(values, 0, features, count * dim);
+		else
+			System.arraycopy(values, 0, features, count * dim, dim);
+		
+		labels[count] = label;
+		images[count] = img;
+		index.put(img.get_fingerprint(), count);
+		count++;
+		version++;
+	}
+	
+	public int get_version() {
+		// changes with every change of the rows, i.e anything built over the dataset is stale once it differs
+		return version;
+	}
+	
+	public int get_rows_version() {
+		// changes when existing rows are removed, moved or rewritten, not when rows are appended ( add_datapoint )
+		return rows_version;
+	}
+	
+	private int row_of(Image img) {
+		// row id of img, or -1. Only the rows with the same fingerprint are compared for real
+		return index.find(img.get_fingerprint(), row -> images[row].equals(img));
+	}
+	
+	private void track(File file, Image img) {
+		// img is null if the file was skipped ( bad format, or a duplicate )
+		tracked_files.put(file.getAbsolutePath(), new FileState(file.lastModified(), file.length(), img));
+	}
+	
+	private void rebuild_rows() {
+		// rewrite every row from the raw values of its image ( through the normalizer if any ), and the statistics with them
+		for (int row = 0; row < count; row++)
+			if (normalizer != null)
+				normalizer.transform(images[row].get_values(), 0, features, row * dim);
+			else
+				System.arraycopy(images[row].get_values(), 0, features, row * dim, dim);
+		
+		if (count > 0)
+			recompute_statistics();
+		
+		version++; // the views cached the old values
+		rows_version++;
+	}
+	
+	private void recompute_statistics() {
+		// from scratch, O(n d)
+		Arrays.fill(sums, 0);
+		Arrays.fill(sums_sq, 0);
+		
+		for (int row = 0; row < count; row++)
+			for (int i = 0, offset = row * dim; i < dim; i++) {
+				sums[i] += features[offset + i];
+				sums_sq[i] += features[offset + i] * features[offset + i];
+			}
+		
+		min_heaps.rebuild(features, count);
+		max_heaps.rebuild(features, count);
+	}
+	
+	private void add_to_statistics(int row) {
+		// update the statistics of each feature with the last row ( min / max heaps, sum, sum of squares )
+		for (int i = 0, offset = row * dim; i < dim; i++) {
+			double value = features[offset + i];
+			sums[i] += value;
+			sums_sq[i] += value * value;
+		}
+		
+		min_heaps.add(features, row);
+		max_heaps.add(features, row);
+	}
+	
+	private void remove_from_statistics(int row) {
+		for (int i = 0, offset = row * dim; i < dim; i++) {
+			double value = features[offset + i];
+			sums[i] -= value;
+			sums_sq[i] -= value * value;
+		}
+		
+		min_heaps.remove(features, row);
+		max_heaps.remove(features, row);
+	}
+	
+	private void remove_from_stratum(int row) {
+		// the last image of the stratum fills the hole of the image of row, so nothing is searched nor shifted
+		List<Image> stratum = stratums.get(labels[row]);
+		Image moved = stratum.remove(stratum.size() - 1);
+		
+		if (moved != images[row]) {
+			stratum.set(stratum_slots[row], moved);
+			stratum_slots[row_of(moved)] = stratum_slots[row];
+		}
+		
+		if (stratum.isEmpty())
+			stratums.remove(labels[row]);
+	}
+	
+	private static class FileState {
+		final long last_modified, length;
+		final Image img; // the image of the file in the dataset, null if it was skipped
+		
+		FileState(long last_modified, long length, Image img) {
+			this.last_modified = last_modified;
+			this.length = length;
+			this.img = img;
+		}
+	}
+	
+	private abstract class RowIterator<T> implements Iterator<T> {
+		// iterates over the rows in order, the views above only say what to build from a row
+		private int next = 0;
+		
+		abstract T at(int row);
+		
+		@Override
+		public boolean hasNext() {
+			return next < size();
+		}
 		
-		for (int i = 0; i < img_data.size(); i++) {
-			if(img_data.get(i) < mins.get(i)) 
-				mins.set(i, img_data.get(i));
+		@Override
+		public T next() {
+			if (next >= size())
+				throw new NoSuchElementException();
 			
-			if(img_data.get(i) > maxs.get(i)) 
-				maxs.set(i, img_data.get(i));
+			return at(next++);
 		}
 	}
 }
@@ -0,0 +1,14 @@
+package dataset;
+import java.util.List;
+
+public interface DatasetListener {
+	/*
+	 * Notified when a Dataset changes after its loading ( see Dataset.refresh() ), so that anything built
+	 * over the dataset ( i.e the index of a classifier ) can be updated with the delta only, instead of being rebuilt.
+	 * The neighbour indexes ( classifiers.NeighbourIndex ) listen to the dataset they are built over.
+	 * 
+	 * A modified file shows up in both lists: its old image is removed, the new one is added.
+	 */
+	
+	void on_refresh(Dataset dataset, List<Image> added, List<Image> removed);
+}
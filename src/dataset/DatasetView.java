@@ -0,0 +1,438 @@
+package dataset;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
+
+public class DatasetView extends Dataset {
+	/*
+	 * Zero-copy subset of a Dataset: just an int[] of row ids of the parent dataset.
+	 * 
+	 * Used for the train/test splits and the folds of the cross validation, instead of re-inserting
+	 * ( rehashing, recomputing the ranges... ) every image in a new Dataset.
+	 * A view is a Dataset, so it can be passed to any classifier: get_features() is the parent's matrix,
+	 * and get_offset(row) points to the parent's row.
+	 * 
+	 * Rows can't be added nor removed from a view, only shuffle() ( it permutes the row ids ) and normalize() are
+	 * allowed, and it is only valid as long as its parent doesn't change: a ConcurrentModificationException is thrown otherwise.
+	 * 
+	 * A normalized view gets its own contiguous copy of its rows, normalized from the raw values of the images
+	 * ( get_features() is that copy then ), the parent and the other views over it are untouched. So a normalizer can be
+	 * fitted on a train split and applied to the test split, as with datasets. The views of a normalized view are
+	 * normalized the same way.
+	 * 
+	 * The statistics ( mins/maxs, means, variances ) and stratums of the view are computed the first time they are needed, then cached
+	 * ( NaN statistics for an empty view ).
+	 */
+	
+	private static final Random random = new Random();
+	
+	private final Dataset parent; // never a view, views of views point directly to the root dataset
+	private final int parent_version;
+	private int changes; // shuffles of the view, see get_version
+	private int[] rows;
+	private int[] view_rows; // parent row -> row in this view ( or -1 ), built the first time find_row is called
+	
+	// own normalized rows ( see normalize ), row r at r * get_dim(), null -> the rows of the parent
+	private double[] own_features;
+	private Normalizer normalizer; // the one of own_features, null for the raw values
+	
+	// cached statistics of the view
+	private double[] mins, maxs, means, variances;
+	private Map<Integer, List<Image>> stratums;
+	
+	public DatasetView(Dataset parent, int[] rows) {
+		if (parent instanceof DatasetView) {
+			// compose the row ids, so there is only one indirection whatever the depth
+			DatasetView parent_view = (DatasetView) parent;
+			int[] root_rows = new int[rows.length];
+			
+			for (int i = 0; i < rows.length; i++)
+				root_rows[i] = parent_view.rows[rows[i]];
+			
+			parent_view.check_parent();
+			this.parent = parent_view.parent;
+			this.rows = root_rows;
+			this.parent_version = this.parent.get_version();
+			
+			if (parent_view.own_features != null)
+				build_own_rows(parent_view.normalizer);
+		}
+		else {
+			for (int row : rows)
+				assert row >= 0 && row < parent.size();
+			
+			this.parent = parent;
+			this.rows = rows.clone();
+			this.parent_version = this.parent.get_version();
+		}
+	}
+	
+	public DatasetView(Dataset parent) {
+		// view of all the rows of parent
+		this(parent, all_rows(parent.size()));
+	}
+	
+	public Dataset get_parent() {
+		return parent;
+	}
+	
+	public int get_parent_row(int row) {
+		return rows[row];
+	}
+	
+	public DatasetView stratified_subset(double fraction) {
+		/*
+		 * random view of floor(fraction * stratum_size) images of each stratum of this view
+		 */
+		assert fraction > 0 && fraction <= 1;
+		
+		List<Integer> subset = new ArrayList<>();
+		
+		for (List<Integer> stratum_rows : get_stratum_rows().values()) {
+			List<Integer> shuffled = new ArrayList<>(stratum_rows);
+			Collections.shuffle(shuffled, random);
+			
+			subset.addAll(shuffled.subList(0, (int) Math.floor(shuffled.size() * fraction)));
+		}
+		
+		return new DatasetView(this, subset.stream().mapToInt(Integer::intValue).toArray());
+	}
+	
+	public Map<Integer, List<Integer>> get_stratum_rows() {
+		// rows of this view grouped by label, labels in order of first appearance
+		Map<Integer, List<Integer>> stratum_rows = new LinkedHashMap<>();
+		
+		for (int row = 0; row < rows.length; row++)
+			stratum_rows.computeIfAbsent(get_label(row), label -> new ArrayList<>()).add(row);
+		
+		return stratum_rows;
+	}
+	
+	// Dataset accessors, redirected to the parent
+	
+	@Override
+	public double[] get_features() {
+		check_parent();
+		return own_features != null ? own_features : parent.get_features();
+	}
+	
+	@Override
+	public int get_offset(int row) {
+		return own_features != null ? row * parent.get_dim() : parent.get_offset(rows[row]);
+	}
+	
+	@Override
+	public int get_dim() {
+		return parent.get_dim();
+	}
+	
+	@Override
+	public int get_label(int row) {
+		return parent.get_label(rows[row]);
+	}
+	
+	@Override
+	public Image get_image(int row) {
+		return parent.get_image(rows[row]);
+	}
+	
+	@Override
+	public String get_representation_type() {
+		return parent.get_representation_type();
+	}
+	
+	@Override
+	public Normalizer get_normalizer() {
+		return own_features != null ? normalizer : parent.get_normalizer();
+	}
+	
+	@Override
+	public int size() {
+		check_parent();
+		return rows.length;
+	}
+	
+	@Override
+	public int get_version() {
+		// the view changes when its parent does, or when it is shuffled
+		return parent.get_version() + changes;
+	}
+	
+	@Override
+	public int get_rows_version() {
+		return parent.get_rows_version() + changes;
+	}
+	
+	@Override
+	public int find_row(Image img) {
+		int parent_row = parent.find_row(img);
+		
+		if (parent_row == -1)
+			return -1;
+		
+		if (view_rows == null) {
+			view_rows = new int[parent.size()];
+			Arrays.fill(view_rows, -1);
+			
+			for (int row = 0; row < rows.length; row++)
+				view_rows[rows[row]] = row;
+		}
+		
+		return view_rows[parent_row];
+	}
+	
+	// cached statistics
+	
+	@Override
+	public double get_min(int attribute) {
+		if (mins == null)
+			compute_statistics();
+		
+		return mins[attribute];
+	}
+	
+	@Override
+	public double get_max(int attribute) {
+		if (maxs == null)
+			compute_statistics();
+		
+		return maxs[attribute];
+	}
+	
+	@Override
+	public List<Double> get_mins() {
+		if (rows.length == 0)
+			return null;
+		
+		if (mins == null)
+			compute_statistics();
+		
+		return Arrays.stream(mins).boxed().collect(Collectors.toList());
+	}
+	
+	@Override
+	public List<Double> get_maxs() {
+		if (rows.length == 0)
+			return null;
+		
+		if (maxs == null)
+			compute_statistics();
+		
+		return Arrays.stream(maxs).boxed().collect(Collectors.toList());
+	}
+	
+	@Override
+	public double get_mean(int attribute) {
+		if (means == null)
+			compute_statistics();
+		
+		return means[attribute];
+	}
+	
+	@Override
+	public double get_variance(int attribute) {
+		if (variances == null)
+			compute_statistics();
+		
+		return variances[attribute];
+	}
+	
+	@Override
+	public Map<Integer, List<Image>> get_stratums() {
+		if (stratums == null) {
+			stratums = new LinkedHashMap<>();
+			
+			for (int row = 0; row < rows.length; row++)
+				stratums.computeIfAbsent(get_label(row), label -> new ArrayList<>()).add(get_image(row));
+		}
+		
+		return stratums;
+	}
+	
+	@Override
+	public void shuffle() {
+		// Fisher-Yates on the row ids, the parent is untouched
+		for (int i = rows.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = rows[i];
+			rows[i] = rows[j];
+			rows[j] = tmp;
+		}
+		
+		view_rows = null;
+		stratums = null; // in the order of the rows
+		changes++;
+		
+		if (own_features != null)
+			build_own_rows(normalizer);
+	}
+	
+	@Override
+	public Normalizer normalize(String method) {
+		// fitted on the raw values of the rows of this view only
+		assert rows.length > 0;
+		
+		denormalize();
+		normalize(new Normalizer(this, method));
+		
+		return normalizer;
+	}
+	
+	@Override
+	public void normalize(Normalizer normalizer) {
+		if (normalizer.get_dim() != get_dim())
+			throw new IllegalArgumentException("The normalizer was fitted on " + normalizer.get_dim() 
+												+ " attributes, this view has " + get_dim());
+		
+		build_own_rows(normalizer);
+	}
+	
+	@Override
+	public void denormalize() {
+		// back to the raw values: the rows of the parent if they are raw, a raw copy otherwise
+		if (parent.get_normalizer() != null)
+			build_own_rows(null);
+		else if (own_features != null) {
+			own_features = null;
+			normalizer = null;
+			clear_statistics();
+			changes++;
+		}
+	}
+	
+	// a view is read-only
+	
+	@Override
+	public boolean add_datapoint(Image img, int label) {
+		throw new UnsupportedOperationException("A DatasetView is read-only");
+	}
+	
+	@Override
+	public boolean remove_datapoint(Image img) {
+		throw new UnsupportedOperationException("A DatasetView is read-only");
+	}
+	
+	@Override
+	public void reset() {
+		throw new UnsupportedOperationException("A DatasetView is read-only");
+	}
+	
+	@Override
+	public void load_dataset_from_directory(String dir_path) throws IOException {
+		throw new UnsupportedOperationException("A DatasetView is read-only");
+	}
+	
+	@Override
+	public void load_dataset_from_directory(String dir_path, int n_threads) throws IOException {
+		throw new UnsupportedOperationException("A DatasetView is read-only");
+	}
+	
+	@Override
+	public void load_dataset_from_directory(String dir_path, ExecutorService pool) throws IOException {
+		throw new UnsupportedOperationException("A DatasetView is read-only");
+	}
+	
+	@Override
+	public void load_dataset_from_packed_file(String packed_path) throws IOException {
+		throw new UnsupportedOperationException("A DatasetView is read-only");
+	}
+	
+	@Override
+	public boolean refresh() throws IOException {
+		throw new UnsupportedOperationException("A DatasetView is read-only");
+	}
+	
+	@Override
+	public String toString() {
+		return "View of " + rows.length + " rows of a " + parent;
+	}
+	
+	private void check_parent() {
+		if (parent.get_version() != parent_version)
+			throw new ConcurrentModificationException("The parent dataset changed, this view is not valid anymore");
+	}
+	
+	private void build_own_rows(Normalizer normalizer) {
+		// the rows of the view from the raw values of their images, through normalizer if not null
+		int dim = get_dim();
+		double[] features = new double[rows.length * dim];
+		
+		for (int row = 0; row < rows.length; row++) {
+			double[] values = get_image(row).get_values();
+			
+			if (normalizer != null)
+				normalizer.transform(values, 0, features, row * dim);
+			else
+				System.arraycopy(values, 0, features, row * dim, dim);
+		}
+		
+		this.own_features = features;
+		this.normalizer = normalizer;
+		clear_statistics();
+		changes++; // the indexes built over the view are stale
+	}
+	
+	private void clear_statistics() {
+		mins = null;
+		maxs = null;
+		means = null;
+		variances = null;
+	}
+	
+	private void compute_statistics() {
+		// one pass over the rows of the view for all the statistics
+		int dim = get_dim();
+		double[] features = get_features();
+		
+		mins = new double[dim];
+		maxs = new double[dim];
+		means = new double[dim];
+		variances = new double[dim];
+		
+		if (rows.length == 0) {
+			Arrays.fill(mins, Double.NaN);
+			Arrays.fill(maxs, Double.NaN);
+			Arrays.fill(means, Double.NaN);
+			Arrays.fill(variances, Double.NaN);
+			return;
+		}
+		
+		System.arraycopy(features, get_offset(0), mins, 0, dim);
+		System.arraycopy(features, get_offset(0), maxs, 0, dim);
+		
+		for (int row = 0; row < rows.length; row++)
+			for (int i = 0, offset = get_offset(row); i < dim; i++) {
+				double value = features[offset + i];
+				means[i] += value;
+				variances[i] += value * value;
+				
+				if (value < mins[i])
+					mins[i] = value;
+				
+				if (value > maxs[i])
+					maxs[i] = value;
+			}
+		
+		for (int i = 0; i < dim; i++) {
+			means[i] /= rows.length;
+			variances[i] = Math.max(0, variances[i] / rows.length - means[i] * means[i]);
+		}
+	}
+	
+	private static int[] all_rows(int size) {
+		int[] rows = new int[size];
+		
+		for (int i = 0; i < size; i++)
+			rows[i] = i;
+		
+		return rows;
+	}
+}
@@ -0,0 +1,157 @@
+package dataset;
+import java.util.Arrays;
+
+final class ExtremumHeaps {
+	/*
+	 * The min ( or the max ) of each attribute of a Dataset, kept exact under insertions and removals without
+	 * rescanning the rows: one indexed binary heap of the row ids per attribute, ordered by the value of the
+	 * attribute in the rows ( the smallest on top for the mins, the biggest for the maxs ).
+	 *
+	 * heaps[i][slot] is a row id, slots[row * dim + i] is the slot of that row in heaps[i], so a row is taken out of
+	 * every heap without searching it: add and remove are O(d log n), top is O(1).
+	 *
+	 * The values are read from the feature matrix of the dataset, passed to each call ( it is reallocated when it grows ).
+	 * The heaps hold the rows 0 to size - 1, like the dataset.
+	 */
+	
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private final int dim;
+	private final boolean max; // max-heaps, min-heaps otherwise
+	private int[][] heaps;
+	private int[] slots;
+	private int size;
+	
+	ExtremumHeaps(int dim, boolean max) {
+		this.dim = dim;
+		this.max = max;
+		this.heaps = new int[dim][INITIAL_CAPACITY];
+		this.slots = new int[INITIAL_CAPACITY * dim];
+	}
+	
+	int top(int attribute) {
+		// row holding the min ( max ) of the attribute
+		assert size > 0;
+		return heaps[attribute][0];
+	}
+	
+	void add(double[] features, int row) {
+		// row is the new last row of the dataset
+		assert row == size;
+		ensure_capacity(size + 1);
+		
+		for (int i = 0; i < dim; i++) {
+			heaps[i][size] = row;
+			slots[row * dim + i] = size;
+			sift_up(features, i, size);
+		}
+		
+		size++;
+	}
+	
+	void remove(double[] features, int row) {
+		// the values of the rows must still be in features
+		size--;
+		
+		for (int i = 0; i < dim; i++) {
+			int slot = slots[row * dim + i], last = heaps[i][size];
+			
+			if (slot == size)
+				continue;
+			
+			// the last entry of the heap fills the hole, then goes up or down
+			heaps[i][slot] = last;
+			slots[last * dim + i] = slot;
+			sift_up(features, i, slot);
+			sift_down(features, i, slots[last * dim + i]);
+		}
+	}
+	
+	void move(int from, int to) {
+		// the row from now is the row to ( same values ), after a removal moved the last row into a hole
+		for (int i = 0; i < dim; i++) {
+			int slot = slots[from * dim + i];
+			
+			heaps[i][slot] = to;
+			slots[to * dim + i] = slot;
+		}
+	}
+	
+	void rebuild(double[] features, int count) {
+		// from scratch over the rows 0 to count - 1 ( bottom-up heapify, O(n d) ), after the rows moved or changed
+		size = count;
+		ensure_capacity(count);
+		
+		for (int i = 0; i < dim; i++) {
+			for (int row = 0; row < count; row++) {
+				heaps[i][row] = row;
+				slots[row * dim + i] = row;
+			}
+			
+			for (int slot = count / 2 - 1; slot >= 0; slot--)
+				sift_down(features, i, slot);
+		}
+	}
+	
+	private boolean before(double a, double b) {
+		return max ? a > b : a < b;
+	}
+	
+	private void sift_up(double[] features, int attribute, int slot) {
+		int[] heap = heaps[attribute];
+		int row = heap[slot];
+		double value = features[row * dim + attribute];
+		
+		while (slot > 0) {
+			int parent = (slot - 1) >>> 1, parent_row = heap[parent];
+			
+			if (!before(value, features[parent_row * dim + attribute]))
+				break;
+			
+			heap[slot] = parent_row;
+			slots[parent_row * dim + attribute] = slot;
+			slot = parent;
+		}
+		
+		heap[slot] = row;
+		slots[row * dim + attribute] = slot;
+	}
+	
+	private void sift_down(double[] features, int attribute, int slot) {
+		int[] heap = heaps[attribute];
+		int row = heap[slot];
+		double value = features[row * dim + attribute];
+		
+		while (true) {
+			int child = 2 * slot + 1;
+			
+			if (child >= size)
+				break;
+			
+			if (child + 1 < size && before(features[heap[child + 1] * dim + attribute], features[heap[child] * dim + attribute]))
+				child++;
+			
+			if (!before(features[heap[child] * dim + attribute], value))
+				break;
+			
+			heap[slot] = heap[child];
+			slots[heap[child] * dim + attribute] = slot;
+			slot = child;
+		}
+		
+		heap[slot] = row;
+		slots[row * dim + attribute] = slot;
+	}
+	
+	private void ensure_capacity(int capacity) {
+		if (capacity <= heaps[0].length)
+			return;
+		
+		int new_capacity = Math.max(capacity, 2 * heaps[0].length);
+		
+		for (int i = 0; i < dim; i++)
+			heaps[i] = Arrays.copyOf(heaps[i], new_capacity);
+		
+		slots = Arrays.copyOf(slots, new_capacity * dim);
+	}
+}
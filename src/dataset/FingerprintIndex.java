@@ -0,0 +1,118 @@
+package dataset;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+final class FingerprintIndex {
+	/*
+	 * Index of the rows of a Dataset by the 64-bit fingerprint of their vector ( see Representation.get_fingerprint() ).
+	 * 
+	 * Open addressing hash table with linear probing, in two primitive arrays ( no boxing, no entry objects ).
+	 * It is a multimap: two rows can share a fingerprint ( same vector with another label, or a real collision ),
+	 * so lookups are given a predicate to confirm the candidate rows.
+	 * Removal uses backward shifting, so there are no tombstones slowing down the probes.
+	 */
+	
+	private static final int EMPTY = -1;
+	private static final int INITIAL_CAPACITY = 32; // power of 2
+	
+	private long[] keys;
+	private int[] rows; // EMPTY marks a free slot
+	private int size, mask;
+	
+	FingerprintIndex() {
+		allocate(INITIAL_CAPACITY);
+	}
+	
+	int size() {
+		return size;
+	}
+	
+	void put(long fingerprint, int row) {
+		if (2 * (size + 1) > keys.length) // load factor <= 0.5
+			grow();
+		
+		int slot = slot_of(fingerprint);
+		
+		while (rows[slot] != EMPTY)
+			slot = (slot + 1) & mask;
+		
+		keys[slot] = fingerprint;
+		rows[slot] = row;
+		size++;
+	}
+	
+	int find(long fingerprint, IntPredicate matches) {
+		// the first row with this fingerprint accepted by matches, or -1
+		for (int slot = slot_of(fingerprint); rows[slot] != EMPTY; slot = (slot + 1) & mask)
+			if (keys[slot] == fingerprint && matches.test(rows[slot]))
+				return rows[slot];
+		
+		return -1;
+	}
+	
+	boolean remove(long fingerprint, int row) {
+		int slot = slot_of(fingerprint);
+		
+		while (rows[slot] != EMPTY && !(keys[slot] == fingerprint && rows[slot] == row))
+			slot = (slot + 1) & mask;
+		
+		if (rows[slot] == EMPTY)
+			return false;
+		
+		// backward shift: move back the following entries of the cluster that can fill the hole
+		int hole = slot;
+		for (int next = (hole + 1) & mask; rows[next] != EMPTY; next = (next + 1) & mask) {
+			int home = slot_of(keys[next]);
+			
+			// can the entry at next move to hole ? only if its home slot is not in (hole, next]
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				rows[hole] = rows[next];
+				hole = next;
+			}
+		}
+		
+		rows[hole] = EMPTY;
+		size--;
+		
+		return true;
+	}
+	
+	void move(long fingerprint, int from, int to) {
+		// the row from of the dataset is now the row to ( the last row moved into the hole of a removal )
+		for (int slot = slot_of(fingerprint); rows[slot] != EMPTY; slot = (slot + 1) & mask)
+			if (keys[slot] == fingerprint && rows[slot] == from) {
+				rows[slot] = to;
+				return;
+			}
+	}
+	
+	void clear() {
+		Arrays.fill(rows, EMPTY);
+		size = 0;
+	}
+	
+	private int slot_of(long fingerprint) {
+		// fingerprints are already well mixed, the low bits are enough
+		return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+	}
+	
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		rows = new int[capacity];
+		Arrays.fill(rows, EMPTY);
+		mask = capacity - 1;
+		size = 0;
+	}
+	
+	private void grow() {
+		long[] old_keys = keys;
+		int[] old_rows = rows;
+		
+		allocate(keys.length * 2);
+		
+		for (int slot = 0; slot < old_rows.length; slot++)
+			if (old_rows[slot] != EMPTY)
+				put(old_keys[slot], old_rows[slot]);
+	}
+}
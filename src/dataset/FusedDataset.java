@@ -0,0 +1,184 @@
+package dataset;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class FusedDataset extends Dataset {
+	/*
+	 * Dataset of images described by several representations at once.
+	 *
+	 * The same image sXXnYYY exists as .E34, .GFD, .SA and .F0 in the different directories, the directories
+	 * are joined on that filename ( images missing from one of them are skipped ) and the representations are
+	 * stored side by side in one row:
+	 *
+	 * 		new FusedDataset("project_files/E34/train", "project_files/GFD/train")
+	 * 		row = [ E34 values ( 16 ) | GFD values ( 100 ) ] -> 116 dims, representation type "E34+GFD"
+	 *
+	 * get_block_offset / get_block_dim tell where each representation is in a row, and select() gives the
+	 * dataset of a subset of the blocks straight from the rows, the files are read and joined only once.
+	 *
+	 * The directories of the example are the ones of the repository: project_files/<REP>/train and
+	 * project_files/<REP>/test hold the same images for the 4 representations ( 63 train / 36 test ),
+	 * except SA/train where s01n001.SA is missing, so a fused train dataset with SA has 62 rows.
+	 */
+	
+	private final String[] block_names;
+	private final int[] block_offsets, block_dims;
+	
+	public FusedDataset(String... dir_paths) throws IOException {
+		assert dir_paths.length > 0;
+		
+		block_names = new String[dir_paths.length];
+		block_offsets = new int[dir_paths.length];
+		block_dims = new int[dir_paths.length];
+		
+		// filename -> representation of each directory, the first one gives the order of the rows
+		List<Map<String, Representation>> blocks = new ArrayList<>(dir_paths.length);
+		List<String> skipped = new ArrayList<>();
+		int offset = 0;
+		
+		for (int b = 0; b < dir_paths.length; b++) {
+			Map<String, Representation> block = read_block(dir_paths[b], skipped);
+			
+			if (block.isEmpty())
+				throw new IOException("No readable representation in " + dir_paths[b]);
+			
+			Representation first = block.values().iterator().next();
+			block_names[b] = first.get_name();
+			block_dims[b] = first.size();
+			block_offsets[b] = offset;
+			offset += block_dims[b];
+			
+			blocks.add(block);
+		}
+		
+		String name = String.join("+", block_names);
+		
+		for (Map.Entry<String, Representation> entry : blocks.get(0).entrySet()) {
+			double[] values = new double[offset];
+			boolean complete = true;
+			
+			for (int b = 0; b < blocks.size() && complete; b++) {
+				Representation rep = blocks.get(b).get(entry.getKey());
+				
+				if (rep == null)
+					complete = false;
+				else
+					System.arraycopy(rep.get_values(), 0, values, block_offsets[b], block_dims[b]);
+			}
+			
+			if (!complete) {
+				skipped.add(entry.getKey());
+				continue;
+			}
+			
+			Image img = new Image(new Representation(values, name, entry.getValue().get_file_path()));
+			
+			if (img.get_label() != -1)
+				add_datapoint(img, img.get_label());
+		}
+		
+		if (!skipped.isEmpty())
+			System.err.println("Skipped " + skipped.size() + " image(s) -> bad format or not in every directory : " + skipped);
+	}
+	
+	private FusedDataset(FusedDataset source, int[] blocks) {
+		// the blocks of source whose indices are passed, in that order
+		block_names = new String[blocks.length];
+		block_offsets = new int[blocks.length];
+		block_dims = new int[blocks.length];
+		
+		int offset = 0;
+		
+		for (int b = 0; b < blocks.length; b++) {
+			block_names[b] = source.block_names[blocks[b]];
+			block_dims[b] = source.block_dims[blocks[b]];
+			block_offsets[b] = offset;
+			offset += block_dims[b];
+		}
+		
+		String name = String.join("+", block_names);
+		
+		for (int row = 0; row < source.size(); row++) {
+			// from the raw values of the images, the rows of source may be normalized
+			Image source_img = source.get_image(row);
+			double[] values = new double[offset];
+			
+			for (int b = 0; b < blocks.length; b++)
+				System.arraycopy(source_img.get_values(), source.block_offsets[blocks[b]], values, block_offsets[b], block_dims[b]);
+			
+			Representation rep = new Representation(values, name, source_img.get_representation().get_file_path());
+			add_datapoint(new Image(rep, source.get_label(row)), source.get_label(row));
+		}
+	}
+	
+	public FusedDataset select(String... names) {
+		// dataset of the passed blocks only ( i.e select("E34", "GFD") ), without reading the files again
+		int[] blocks = new int[names.length];
+		
+		for (int b = 0; b < names.length; b++) {
+			blocks[b] = Arrays.asList(block_names).indexOf(names[b]);
+			
+			if (blocks[b] == -1)
+				throw new IllegalArgumentException("No " + names[b] + " block in this dataset " + Arrays.toString(block_names));
+		}
+		
+		return new FusedDataset(this, blocks);
+	}
+	
+	public List<String> get_block_names() {
+		return Arrays.asList(block_names.clone());
+	}
+	
+	public int get_block_offset(String name) {
+		// where the block starts in each row, -1 if there is no such block
+		int b = Arrays.asList(block_names).indexOf(name);
+		
+		return b == -1 ? -1 : block_offsets[b];
+	}
+	
+	public int get_block_dim(String name) {
+		int b = Arrays.asList(block_names).indexOf(name);
+		
+		return b == -1 ? 0 : block_dims[b];
+	}
+	
+	@Override
+	public String toString() {
+		return "Fused dataset that contains " + size() + " images represented with " + get_representation_type()
+				+ " ( " + get_dim() + " values ). \n";
+	}
+	
+	private static Map<String, Representation> read_block(String dir_path, List<String> skipped) throws IOException {
+		// readable representations of a directory, by ( lower case ) SxxNyyy filename, in the order of the files
+		Map<String, Representation> block = new LinkedHashMap<>();
+		Map<String, Integer> kinds = new HashMap<>();
+		
+		for (File file : list_files(dir_path))
+			try {
+				Representation rep = new Representation(file.getAbsolutePath());
+				
+				if (rep.get_filename().isEmpty())
+					skipped.add(file.getName());
+				else {
+					block.put(rep.get_filename().toLowerCase(), rep);
+					kinds.merge(rep.get_name(), 1, Integer::sum);
+				}
+			} catch (BadRepresentationFileException e) {
+				skipped.add(file.getName());
+			}
+		
+		if (kinds.size() > 1) {
+			// keep the representation of the majority of the files, so the first file doesn't decide alone
+			String kind = kinds.entrySet().stream().max(Map.Entry.comparingByValue()).get().getKey();
+			block.values().removeIf(rep -> !rep.get_name().equals(kind));
+		}
+		
+		return block;
+	}
+}
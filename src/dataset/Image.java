@@ -81,6 +81,14 @@ public class Image implements Cloneable {
 		return rep.get_data();
 	}
 	
+	public double[] get_values() {
+		return rep.get_values();
+	}
+	
+	public long get_fingerprint() {
+		return rep.get_fingerprint();
+	}
+	
 	private boolean conclude_label_from_filename() {
 		// conclude label from filename
 		// assuming filename format: SxxNyyy.*
@@ -135,7 +143,7 @@ public class Image implements Cloneable {
 	// so that we don't include duplicates ( useless )
 	@Override
 	public int hashCode() {
-		return rep.get_data().hashCode();
+		return rep.hashCode();
 	}
 	
 	public Image clone() {
@@ -0,0 +1,74 @@
+package dataset;
+
+public class Normalizer {
+	/*
+	 * Fitted per-attribute affine transform: x'[i] = (x[i] - shifts[i]) * scales[i]
+	 *
+	 * Two methods:
+	 * 		"min-max" -> each attribute is mapped to [0; 1] using the mins/maxs of the dataset
+	 * 		"z-score" -> each attribute is centered and divided by its standard deviation
+	 *
+	 * It is fitted once on a training dataset, then Dataset.normalize applies it in place to the feature matrix
+	 * and keeps it, so the classifiers trained on that dataset transform each query with it ( d operations )
+	 * instead of copying the dataset. A constant attribute is only shifted ( scale 1 ).
+	 * 
+	 * The splits and folds ( DatasetView ) can be normalized too: a view gets its own normalized copy of its rows,
+	 * so a normalizer fitted on a train split can be applied to the test split without touching the dataset.
+	 */
+	
+	private final String method;
+	private final double[] shifts, scales;
+	
+	public Normalizer(Dataset dataset, String method) {
+		assert dataset != null && dataset.size() > 0;
+		assert method.toLowerCase().equals("min-max")
+			|| method.toLowerCase().equals("z-score");
+		
+		this.method = method.toLowerCase();
+		
+		int dim = dataset.get_dim();
+		shifts = new double[dim];
+		scales = new double[dim];
+		
+		for (int i = 0; i < dim; i++) {
+			double spread;
+			
+			if (this.method.equals("min-max")) {
+				shifts[i] = dataset.get_min(i);
+				spread = dataset.get_max(i) - shifts[i];
+			}
+			else {
+				shifts[i] = dataset.get_mean(i);
+				spread = Math.sqrt(dataset.get_variance(i));
+			}
+			
+			scales[i] = spread > 0 ? 1 / spread : 1;
+		}
+	}
+	
+	public void transform(double[] x, int x_off, double[] out, int out_off) {
+		// out can be x itself ( in place )
+		for (int i = 0; i < shifts.length; i++)
+			out[out_off + i] = (x[x_off + i] - shifts[i]) * scales[i];
+	}
+	
+	public double[] transform(double[] x) {
+		double[] out = new double[x.length];
+		transform(x, 0, out, 0);
+		
+		return out;
+	}
+	
+	public String get_method() {
+		return method;
+	}
+	
+	public int get_dim() {
+		return shifts.length;
+	}
+	
+	@Override
+	public String toString() {
+		return method + " normalizer of " + shifts.length + " attributes";
+	}
+}
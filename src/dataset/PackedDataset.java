@@ -0,0 +1,221 @@
+package dataset;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+public final class PackedDataset {
+	/*
+	 * Packed binary format of a whole representation directory, so we don't re-parse hundreds of text files
+	 * on every run. The packed file is opened with one FileChannel.map call.
+	 * 
+	 * Layout ( big endian ):
+	 * 		header:
+	 * 			int    MAGIC, int VERSION
+	 * 			string representation type ( E34, GFD, SA or F0 )
+	 * 			int    dim, int count
+	 * 			int    n_labels, then n_labels * ( int label, string class name )
+	 * 			count * string file path of each image
+	 * 		padding up to a multiple of 8 bytes
+	 * 		feature block: count * dim doubles, row-major ( same layout as Dataset.get_features() ), the raw values
+	 * 		               even if the dataset is normalized ( normalize it again after loading )
+	 * 		label block:   count ints
+	 * 
+	 * 		a string is an int length followed by its UTF-8 bytes.
+	 * 
+	 * Tool usage: java dataset.PackedDataset <representation_dir> [packed_file]
+	 */
+	
+	public static final String EXTENSION = ".rfd";
+	
+	private static final int MAGIC = 0x52464453; // "RFDS"
+	private static final int VERSION = 1;
+	
+	// Static class, doesn't make any sense to instantiate it
+	private PackedDataset() {}
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: PackedDataset <representation_dir> [packed_file]");
+			System.exit(1);
+		}
+		
+		String packed_path = args.length == 2 ? args[1] : default_packed_path(args[0]);
+		Dataset dataset = compile(args[0], packed_path);
+		
+		System.out.println("Packed " + dataset.size() + " " + dataset.get_representation_type() + " images into " + packed_path);
+	}
+	
+	public static String default_packed_path(String dir_path) {
+		// project_files/E34 -> project_files/E34.rfd
+		Path dir = Paths.get(dir_path).toAbsolutePath().normalize();
+		
+		return dir.resolveSibling(dir.getFileName() + EXTENSION).toString();
+	}
+	
+	public static Dataset load(String dir_path) throws IOException {
+		// open the packed file of the directory, (re)building it first if it is missing or older than the directory
+		return load(dir_path, default_packed_path(dir_path));
+	}
+	
+	public static Dataset load(String dir_path, String packed_path) throws IOException {
+		if (!is_up_to_date(dir_path, packed_path))
+			compile(dir_path, packed_path);
+		
+		Dataset dataset = new Dataset();
+		dataset.load_dataset_from_packed_file(packed_path);
+		
+		return dataset;
+	}
+	
+	public static Dataset compile(String dir_path, String packed_path) throws IOException {
+		// load the directory ( text files ) and write it packed
+		Dataset dataset = new Dataset(dir_path, Runtime.getRuntime().availableProcessors());
+		write(dataset, packed_path);
+		
+		return dataset;
+	}
+	
+	public static boolean is_up_to_date(String dir_path, String packed_path) throws IOException {
+		/*
+		 * The packed file is up to date if it is newer than the directory ( files added or removed )
+		 * and than every file in it ( files modified ).
+		 */
+		Path packed = Paths.get(packed_path);
+		
+		if (!Files.isRegularFile(packed))
+			return false;
+		
+		FileTime packed_time = Files.getLastModifiedTime(packed);
+		
+		try (Stream<Path> walk = Files.walk(Paths.get(dir_path), 1)) {
+			return walk.noneMatch(path -> {
+				try {
+					return Files.getLastModifiedTime(path).compareTo(packed_time) > 0;
+				} catch (IOException e) {
+					return true;
+				}
+			});
+		}
+	}
+	
+	public static void write(Dataset dataset, String packed_path) throws IOException {
+		assert dataset != null && dataset.size() > 0;
+		
+		int dim = dataset.get_dim(), count = dataset.size();
+		
+		// label table, sorted by label
+		Map<Integer, String> label_table = new TreeMap<>();
+		for (int row = 0; row < count; row++)
+			label_table.put(dataset.get_label(row), Image.label_map.get(dataset.get_label(row)));
+		
+		Path tmp = Paths.get(packed_path + ".tmp");
+		
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			write_string(out, dataset.get_representation_type());
+			out.writeInt(dim);
+			out.writeInt(count);
+			
+			out.writeInt(label_table.size());
+			for (Map.Entry<Integer, String> entry : label_table.entrySet()) {
+				out.writeInt(entry.getKey());
+				write_string(out, entry.getValue());
+			}
+			
+			for (int row = 0; row < count; row++)
+				write_string(out, dataset.get_image(row).get_representation().get_file_path());
+			
+			// align the feature block on 8 bytes
+			while (out.size() % Double.BYTES != 0)
+				out.writeByte(0);
+			
+			// the raw values of the images: the rows of a normalized dataset are not, and read_into takes them as raw
+			for (int row = 0; row < count; row++)
+				for (double value : dataset.get_image(row).get_values())
+					out.writeDouble(value);
+			
+			for (int row = 0; row < count; row++)
+				out.writeInt(dataset.get_label(row));
+		}
+		
+		// so a reader never sees a half written file
+		Files.move(tmp, Paths.get(packed_path), StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	static void read_into(Dataset dataset, String packed_path) throws IOException {
+		// used by Dataset.load_dataset_from_packed_file, the dataset is already reset
+		
+		MappedByteBuffer buffer;
+		
+		try (FileChannel channel = FileChannel.open(Paths.get(packed_path), StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // the mapping outlives the channel
+		}
+		
+		if (buffer.remaining() < 2 * Integer.BYTES || buffer.getInt() != MAGIC)
+			throw new IOException(packed_path + " is not a packed dataset");
+		
+		int version = buffer.getInt();
+		if (version != VERSION)
+			throw new IOException(packed_path + " : unsupported packed dataset version " + version);
+		
+		String representation_type = read_string(buffer);
+		int dim = buffer.getInt();
+		int count = buffer.getInt();
+		
+		int n_labels = buffer.getInt();
+		for (int i = 0; i < n_labels; i++) {
+			buffer.getInt(); // label, the class names are only informative
+			read_string(buffer);
+		}
+		
+		String[] file_paths = new String[count];
+		for (int row = 0; row < count; row++)
+			file_paths[row] = read_string(buffer);
+		
+		while (buffer.position() % Double.BYTES != 0)
+			buffer.get();
+		
+		DoubleBuffer feature_block = buffer.asDoubleBuffer();
+		buffer.position(buffer.position() + count * dim * Double.BYTES);
+		IntBuffer label_block = buffer.asIntBuffer();
+		
+		for (int row = 0; row < count; row++) {
+			double[] values = new double[dim];
+			feature_block.get(values);
+			
+			int label = label_block.get(row);
+			Representation rep = new Representation(values, representation_type, file_paths[row]);
+			
+			dataset.add_datapoint(new Image(rep, label), label);
+		}
+	}
+	
+	private static void write_string(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String read_string(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,94 @@
+package dataset;
+
+public class QuantizedFeatures {
+	/*
+	 * int8 scalar quantization of the feature matrix of a Dataset, 1 byte per value ( 8x less than doubles ).
+	 * 
+	 * Each attribute i is quantized on 256 levels over the range [mins[i], maxs[i]] the Dataset already keeps:
+	 * 		code = round((x - min) / scale) with scale = (max - min) / 255, stored as an unsigned byte
+	 * 		decoded x = min + code * scale
+	 * so the error is at most scale / 2 per attribute.
+	 * 
+	 * Queries are not quantized ( asymmetric distance ), see AbstractClassifier.dist(double[], int, QuantizedFeatures, int, int).
+	 */
+	
+	private static final int LEVELS = 255;
+	
+	private final byte[] codes;
+	private final int[] labels;
+	private final double[] mins, scales;
+	private final int count, dim;
+	
+	public QuantizedFeatures(Dataset dataset) {
+		assert dataset != null && dataset.size() > 0;
+		
+		count = dataset.size();
+		dim = dataset.get_dim();
+		codes = new byte[count * dim];
+		labels = new int[count];
+		mins = new double[dim];
+		scales = new double[dim];
+		
+		for (int i = 0; i < dim; i++) {
+			mins[i] = dataset.get_min(i);
+			scales[i] = (dataset.get_max(i) - mins[i]) / LEVELS;
+		}
+		
+		double[] source = dataset.get_features();
+		
+		for (int row = 0; row < count; row++) {
+			int offset = dataset.get_offset(row);
+			
+			for (int i = 0; i < dim; i++)
+				codes[row * dim + i] = encode(source[offset + i], i);
+			
+			labels[row] = dataset.get_label(row);
+		}
+	}
+	
+	public byte encode(double x, int attribute) {
+		if (scales[attribute] == 0)
+			return 0; // constant attribute
+		
+		long code = Math.round((x - mins[attribute]) / scales[attribute]);
+		
+		return (byte) Math.max(0, Math.min(LEVELS, code));
+	}
+	
+	public double decode(int row, int attribute) {
+		return mins[attribute] + (codes[row * dim + attribute] & 0xFF) * scales[attribute];
+	}
+	
+	public byte[] get_codes() {
+		return codes;
+	}
+	
+	public double[] get_mins() {
+		return mins;
+	}
+	
+	public double[] get_scales() {
+		return scales;
+	}
+	
+	public int get_offset(int row) {
+		return row * dim;
+	}
+	
+	public int get_label(int row) {
+		return labels[row];
+	}
+	
+	public int get_dim() {
+		return dim;
+	}
+	
+	public int size() {
+		return count;
+	}
+	
+	public long get_memory_bytes() {
+		// codes + labels + the per attribute mins/scales
+		return (long) codes.length + (long) labels.length * Integer.BYTES + 2L * dim * Double.BYTES;
+	}
+}
@@ -1,11 +1,8 @@
 package dataset;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
-import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.regex.Matcher;
@@ -23,8 +20,12 @@ public class Representation {
 	 * 		
 	 */
 	
+	// added Pattern.CASE_INSENSITIVE, because an example of failure: S02n005.GFD [ uppercase S ]
+	private static final Pattern FILENAME_PATTERN = Pattern.compile("s[0-9][0-9]n[0-9][0-9][0-9][.]", Pattern.CASE_INSENSITIVE);
+	
 	private String name, file_path, filename;
-	private List<Double> data;
+	private double[] values; // primitive storage, no boxing. get_data() is just a view over it
+	private long fingerprint; // 64-bit hash of values, computed once ( values never change )
 	
 	private Representation() {}
 	
@@ -33,42 +34,43 @@ public class Representation {
 		// how many values are there in the corresponding file.
 		// Independent from the file's extension.
 		
-		data = read_representation(file_path);
+		values = read_values(file_path);
 		this.filename = "";
 		
-		if (data != null) {
+		if (values != null) {
 			this.file_path = file_path;
+			this.fingerprint = compute_fingerprint(values);
 			construct_filename_from_path();
 			
-			switch (data.size()) {
-				case 16:
-					name = "E34";
-					break;
-				case 90:
-					name = "SA";
-					break;
-				case 100:
-					name = "GFD";
-					break;
-				case 128:
-					name = "F0";
-					break;
-				default:
-					throw new BadRepresentationFileException("Unknown representation !");
-			}
+			name = representation_name(values.length);
+			
+			if (name == null)
+				throw new BadRepresentationFileException("Unknown representation !");
 		}
 		else
 			throw new BadRepresentationFileException("Couldnt read the file !");
 	}
 	
 	public Representation(List<Double> data, String name) {
-		this.data = data;
-		this.name = name;
+		this(data.stream().mapToDouble(Double::doubleValue).toArray(), name);
 	}
 	
 	public Representation(Double[] data, String name) {
-		this.data = Arrays.asList(data);
+		this(Arrays.asList(data), name);
+	}
+	
+	public Representation(double[] values, String name) {
+		this.values = values;
 		this.name = name;
+		this.fingerprint = compute_fingerprint(values);
+	}
+	
+	Representation(double[] values, String name, String file_path) {
+		// already parsed representation of a file ( i.e coming from a packed dataset )
+		this(values, name);
+		this.filename = "";
+		this.file_path = file_path;
+		construct_filename_from_path();
 	}
 	
 	public String get_name() {
@@ -84,40 +86,111 @@ public class Representation {
 	}
 	
 	public List<Double> get_data() {
-		return data;
+		// read-only boxed view, kept for the old List based API.
+		// Hot loops should use get_values() instead.
+		return new AbstractList<Double>() {
+			@Override
+			public Double get(int index) {
+				return values[index];
+			}
+
+			@Override
+			public int size() {
+				return values.length;
+			}
+		};
+	}
+	
+	public double[] get_values() {
+		return values;
+	}
+	
+	public int size() {
+		return values.length;
+	}
+	
+	public long get_fingerprint() {
+		// equal representations have equal fingerprints, used by Dataset to find an image in O(1)
+		return fingerprint;
+	}
+	
+	static long compute_fingerprint(double[] values) {
+		// mix the bits of each value ( murmur3 finalizer ), so nearby vectors get unrelated fingerprints
+		long h = values.length;
+		
+		for (double value : values) {
+			long bits = Double.doubleToLongBits(value);
+			
+			h = (h ^ bits) * 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+		}
+		
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		
+		return h;
 	}
 
 	public List<Double> read_representation(String path){
 		// read a representation file ( List of numbers )
 		// returns a list of double or null if we couldn't.
 		
+		double[] values = read_values(path);
+		
+		return values == null ? null : Arrays.stream(values).boxed().collect(Collectors.toList());
+	}
+	
+	public double[] read_values(String path) {
+		// read a representation file straight into a double[], without boxing ( see RepresentationParser )
+		// returns null if we couldn't.
+		
 		try {
-			List<Double> data = Files.lines(Paths.get(path))
-	                				 .map(Double::parseDouble)
-	                				 .collect(Collectors.toList());
-			return data;
+			return RepresentationParser.read(path);
 		} catch (NoSuchFileException e) {
 			System.err.println("File not found !");
 		    e.printStackTrace();
 		} catch (IOException e) {
 			System.err.println(e.getMessage());
 		    e.printStackTrace();
+		} catch (NumberFormatException e) {
+			System.err.println(path + " is not a list of numbers : " + e.getMessage());
 		}
 		
 		return null;
 	}
 	
+	public static String representation_name(int size) {
+		// which representation has this many values, null if none
+		switch (size) {
+			case 16:
+				return "E34";
+			case 90:
+				return "SA";
+			case 100:
+				return "GFD";
+			case 128:
+				return "F0";
+			default:
+				return null;
+		}
+	}
+	
 	private void construct_filename_from_path() {
-		Pattern p = Pattern.compile("s[0-9][0-9]n[0-9][0-9][0-9][.]", Pattern.CASE_INSENSITIVE);
-		// added Pattern.CASE_INSENSITIVE, because an example of failure: S02n005.GFD [ uppercase S ]
-        Matcher m = p.matcher(this.file_path);
+		this.filename = filename_from_path(this.file_path);
+	}
+	
+	static String filename_from_path(String file_path) {
+		// SxxNyyy part of the path, or "" if the path doesn't follow the convention
+        Matcher m = FILENAME_PATTERN.matcher(file_path);
         
         if (m.find()) {
         	String match = m.group();
         	
         	// to remove the dot at the end
-        	this.filename = match.substring(0, match.length() - 1); 
+        	return match.substring(0, match.length() - 1); 
         }
+        
+        return "";
 	}
 	
 	@Override
@@ -133,17 +206,24 @@ public class Representation {
 		// Two representations are the same if they have the same list of numbers
 		// and the same type of representation.
 		
-		return other.get_data().equals(this.data) &&
+		return Arrays.equals(other.values, this.values) &&
 			   other.get_name().equals(this.name);
 	}
 	
+	@Override
+	public int hashCode() {
+		// no need to go through the values again
+		return (int) (fingerprint ^ (fingerprint >>> 32));
+	}
+	
 	public Representation clone() {
 		Representation rep = new Representation();
 		
 		rep.name = this.name;
 		rep.file_path = this.file_path;
 		rep.filename = this.filename;
-		rep.data = new ArrayList<Double>(this.data);
+		rep.values = this.values.clone();
+		rep.fingerprint = this.fingerprint;
 		
 		return rep;
 	}
@@ -0,0 +1,178 @@
+package dataset;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public final class RepresentationParser {
+	/*
+	 * Fast reader for the representation files ( one decimal number per line ).
+	 * 
+	 * The file is read as bytes into a reused direct buffer, and the numbers are parsed in place
+	 * ( no String per line, no boxing ) straight into a double[].
+	 * 
+	 * Parsing is bit-identical to Double.parseDouble:
+	 * 		a number like 0.179355 is read as an integer mantissa m = 179355 and a decimal exponent e = -6.
+	 * 		When m <= 2^53 and |e| <= 22, both m and 10^|e| are exact doubles, so m / 10^|e| is a single
+	 * 		correctly rounded operation, i.e the exact same double that Double.parseDouble returns
+	 * 		( Clinger's fast path ).
+	 * 		Anything else ( more digits, exponents, NaN ... ) falls back to Double.parseDouble.
+	 */
+	
+	// Static class, doesn't make any sense to instantiate it
+	private RepresentationParser() {}
+	
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+	private static final int MAX_FAST_DIGITS = 18; // a long can't overflow below that
+	
+	// one buffer per thread, so Dataset's parallel loading doesn't need any locking
+	private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(8192));
+	private static final ThreadLocal<double[]> scratches = ThreadLocal.withInitial(() -> new double[256]);
+	
+	public static double[] read(String path) throws IOException {
+		// read the whole file into the buffer of the current thread, then parse it
+		
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			long size = channel.size();
+			
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(path + " is too big to be a representation file");
+			
+			ByteBuffer buffer = buffers.get();
+			
+			if (buffer.capacity() < size) {
+				buffer = ByteBuffer.allocateDirect(Math.max((int) size, buffer.capacity() * 2));
+				buffers.set(buffer);
+			}
+			
+			buffer.clear();
+			buffer.limit((int) size);
+			
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+			
+			buffer.flip();
+			
+			return parse(buffer);
+		}
+	}
+	
+	public static double[] parse(ByteBuffer buffer) {
+		/*
+		 * Parse the bytes between position and limit, one number per line.
+		 * Blank lines are ignored, leading/trailing whitespaces ( and \r ) are trimmed.
+		 * 
+		 * throws NumberFormatException if a line is not a number.
+		 */
+		
+		double[] values = scratches.get();
+		int count = 0;
+		int limit = buffer.limit();
+		int line_start = buffer.position();
+		
+		while (line_start < limit) {
+			int line_end = line_start;
+			
+			while (line_end < limit && buffer.get(line_end) != '\n')
+				line_end++;
+			
+			// trim the line
+			int from = line_start, to = line_end;
+			
+			while (from < to && is_whitespace(buffer.get(from)))
+				from++;
+			
+			while (to > from && is_whitespace(buffer.get(to - 1)))
+				to--;
+			
+			if (from < to) {
+				if (count == values.length) {
+					values = Arrays.copyOf(values, count * 2);
+					scratches.set(values);
+				}
+				
+				values[count++] = parse_double(buffer, from, to);
+			}
+			
+			line_start = line_end + 1;
+		}
+		
+		return Arrays.copyOf(values, count);
+	}
+	
+	public static double parse_double(ByteBuffer buffer, int from, int to) {
+		// parse the number written in buffer[from, to)
+		
+		int i = from;
+		boolean negative = false;
+		
+		byte c = buffer.get(i);
+		if (c == '-' || c == '+') {
+			negative = c == '-';
+			i++;
+		}
+		
+		long mantissa = 0;
+		int significant_digits = 0, exponent = 0;
+		boolean any_digit = false;
+		
+		// integer part
+		for (; i < to; i++) {
+			c = buffer.get(i);
+			
+			if (c < '0' || c > '9')
+				break;
+			
+			any_digit = true;
+			if ((mantissa != 0 || c != '0') && ++significant_digits > MAX_FAST_DIGITS)
+				return parse_double_slow(buffer, from, to);
+			
+			mantissa = mantissa * 10 + (c - '0');
+		}
+		
+		// fractional part
+		if (i < to && buffer.get(i) == '.') {
+			for (i++; i < to; i++) {
+				c = buffer.get(i);
+				
+				if (c < '0' || c > '9')
+					break;
+				
+				any_digit = true;
+				if ((mantissa != 0 || c != '0') && ++significant_digits > MAX_FAST_DIGITS)
+					return parse_double_slow(buffer, from, to);
+				
+				mantissa = mantissa * 10 + (c - '0');
+				exponent--;
+			}
+		}
+		
+		// exponents, NaN, Infinity, garbage... are left to Double.parseDouble
+		if (!any_digit || i != to || mantissa > MAX_EXACT_MANTISSA || -exponent >= POWERS_OF_TEN.length)
+			return parse_double_slow(buffer, from, to);
+		
+		double value = (double) mantissa / POWERS_OF_TEN[-exponent];
+		
+		return negative ? -value : value;
+	}
+	
+	private static double parse_double_slow(ByteBuffer buffer, int from, int to) {
+		byte[] bytes = new byte[to - from];
+		
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buffer.get(from + i);
+		
+		return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+	}
+	
+	private static boolean is_whitespace(byte c) {
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+}
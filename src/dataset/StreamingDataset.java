@@ -0,0 +1,230 @@
+package dataset;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+public class StreamingDataset implements Iterable<StreamingDataset.Chunk> {
+	/*
+	 * Lazy version of Dataset, for directories that don't fit in RAM.
+	 * 
+	 * Only the file paths and their labels ( concluded from the SxxNyyy filenames ) are indexed up front,
+	 * the feature vectors are read on demand, chunk by chunk, while iterating:
+	 * 
+	 * 		for (StreamingDataset.Chunk chunk : streaming_dataset)
+	 * 			for (int i = 0; i < chunk.size(); i++)
+	 * 				// row i is chunk.get_features()[chunk.get_offset(i), chunk.get_offset(i) + get_dim())
+	 * 
+	 * Memory is bounded by chunk_size * dim doubles whatever the number of files, because each iterator
+	 * reuses the same chunk: a chunk is only valid until the next call to next().
+	 * 
+	 * Like Dataset, the representation type is the one of the first file, files of another type
+	 * ( or bad files ) are skipped while iterating.
+	 */
+	
+	public static final int DEFAULT_CHUNK_SIZE = 1024;
+	
+	private List<String> file_paths;
+	private List<Integer> labels;
+	private String representation_type, path;
+	private int dim, chunk_size;
+	
+	private double[] mins, maxs; // computed with a streaming pass, the first time they are needed
+	
+	public StreamingDataset(String dir_path) throws IOException {
+		this(dir_path, DEFAULT_CHUNK_SIZE);
+	}
+	
+	public StreamingDataset(String dir_path, int chunk_size) throws IOException {
+		assert chunk_size > 0;
+		
+		this.path = dir_path;
+		this.chunk_size = chunk_size;
+		this.file_paths = new ArrayList<>();
+		this.labels = new ArrayList<>();
+		this.representation_type = "";
+		
+		for (File file : Dataset.list_files(dir_path)) {
+			String filename = Representation.filename_from_path(file.getAbsolutePath());
+			int label = filename.isEmpty() ? -1 : Integer.parseInt(filename.substring(1, 3));
+			
+			if (label < 1 || label > 9) {
+				System.err.println("Skipping " + file.getName() + " -> no label in the filename");
+				continue;
+			}
+			
+			// the first readable file defines the representation type
+			if (representation_type.isEmpty()) 
+				try {
+					Representation rep = new Representation(file.getAbsolutePath());
+					representation_type = rep.get_name();
+					dim = rep.size();
+				} catch (BadRepresentationFileException e) {
+					System.err.println("Skipping " + file.getName() + " -> Bad format");
+					continue;
+				}
+			
+			file_paths.add(file.getAbsolutePath());
+			labels.add(label);
+		}
+		
+		if (file_paths.isEmpty())
+			throw new IOException("No representation file in " + dir_path);
+	}
+	
+	public int size() {
+		// number of indexed files
+		return file_paths.size();
+	}
+	
+	public int get_dim() {
+		return dim;
+	}
+	
+	public int get_chunk_size() {
+		return chunk_size;
+	}
+	
+	public String get_representation_type() {
+		return representation_type;
+	}
+	
+	public String get_path(int index) {
+		return file_paths.get(index);
+	}
+	
+	public int get_label(int index) {
+		return labels.get(index);
+	}
+	
+	public double get_min(int attribute) {
+		if (mins == null)
+			compute_ranges();
+		
+		return mins[attribute];
+	}
+	
+	public double get_max(int attribute) {
+		if (maxs == null)
+			compute_ranges();
+		
+		return maxs[attribute];
+	}
+	
+	@Override
+	public Iterator<Chunk> iterator() {
+		return new ChunkIterator();
+	}
+	
+	@Override
+	public String toString() {
+		return "Streaming dataset of " + size() + " images represented with " + representation_type + ". \nPath = " + path + '\n';
+	}
+	
+	private void compute_ranges() {
+		double[] new_mins = new double[dim], new_maxs = new double[dim];
+		Arrays.fill(new_mins, Double.POSITIVE_INFINITY);
+		Arrays.fill(new_maxs, Double.NEGATIVE_INFINITY);
+		
+		for (Chunk chunk : this) {
+			double[] features = chunk.get_features();
+			
+			for (int row = 0; row < chunk.size(); row++) 
+				for (int i = 0, offset = chunk.get_offset(row); i < dim; i++) {
+					new_mins[i] = Math.min(new_mins[i], features[offset + i]);
+					new_maxs[i] = Math.max(new_maxs[i], features[offset + i]);
+				}
+		}
+		
+		mins = new_mins;
+		maxs = new_maxs;
+	}
+	
+	public static class Chunk {
+		/*
+		 * A block of at most chunk_size consecutive rows, same row-major layout as Dataset.get_features()
+		 */
+		private final double[] features;
+		private final int[] labels;
+		private final int dim;
+		private int size, first_index;
+		
+		private Chunk(int capacity, int dim) {
+			this.features = new double[capacity * dim];
+			this.labels = new int[capacity];
+			this.dim = dim;
+		}
+		
+		public double[] get_features() {
+			return features;
+		}
+		
+		public int get_offset(int row) {
+			return row * dim;
+		}
+		
+		public int get_label(int row) {
+			return labels[row];
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public int get_first_index() {
+			// index ( in the streaming dataset ) of the first file of this chunk
+			return first_index;
+		}
+	}
+	
+	private class ChunkIterator implements Iterator<Chunk> {
+		private final Chunk chunk = new Chunk(chunk_size, dim); // reused for every block
+		private int next_file = 0;
+		private boolean filled = false;
+		
+		@Override
+		public boolean hasNext() {
+			if (!filled)
+				fill();
+			
+			return chunk.size > 0;
+		}
+		
+		@Override
+		public Chunk next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			
+			filled = false;
+			return chunk;
+		}
+		
+		private void fill() {
+			chunk.size = 0;
+			chunk.first_index = next_file;
+			
+			while (chunk.size < chunk_size && next_file < file_paths.size()) {
+				int index = next_file++;
+				
+				try {
+					double[] values = RepresentationParser.read(file_paths.get(index));
+					
+					if (values.length != dim) {
+						System.err.println("Skipping " + file_paths.get(index) + " -> not a " + representation_type + " representation");
+						continue;
+					}
+					
+					System.arraycopy(values, 0, chunk.features, chunk.size * dim, dim);
+					chunk.labels[chunk.size++] = labels.get(index);
+				} catch (IOException | NumberFormatException e) {
+					System.err.println("Skipping " + file_paths.get(index) + " -> Bad format");
+				}
+			}
+			
+			filled = true;
+		}
+	}
+}
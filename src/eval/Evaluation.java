@@ -1,17 +1,19 @@
 package eval;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import classifiers.AbstractClassifier;
+import classifiers.KnnClassifier;
 import dataset.Dataset;
+import dataset.DatasetView;
 import dataset.Image;
 
 public final class Evaluation {
@@ -19,6 +21,9 @@ public final class Evaluation {
 	
 	private Evaluation() {}
 	
+	// voting rules of k_sweep: one vote per neighbour, votes weighted by 1 / distance, votes weighted by 1 / rank
+	public static final List<String> VOTING_RULES = Collections.unmodifiableList(Arrays.asList("majority", "distance", "rank"));
+	
 	/*
 	 * Comparing a list of classifiers accuracy ratio given train and test datasets.
 	 */
@@ -66,12 +71,14 @@ public final class Evaluation {
 			
 		assert k > 1;	
 		
+		// shuffle a view, so the passed dataset ( and the views already made over it ) are left untouched
+		dataset = new DatasetView(dataset);
+		
 		if (shuffle)
 			dataset.shuffle();
 		
 		boolean leave_one_out = k >= dataset.size();
 		
-		List<Image> datapoints = dataset.keySet().stream().collect(Collectors.toList()); // keeping references to instances
 		List<CrossValEntry> results = new ArrayList<>(); // list of results that will be returned
 		
 		List<List<Double>> training_accs = new ArrayList<>(); // list where we keep training accuracies for each classifier
@@ -82,31 +89,45 @@ public final class Evaluation {
 			test_accs.add(new ArrayList<>());
 		}
 		
+		/*
+		 * The training and test sets of each iteration are DatasetViews ( row ids ) over the dataset,
+		 * nothing is copied nor re-inserted.
+		 */
+		
 		if (leave_one_out) {
 			if (verbose)
 				System.out.println("Performing leave one out..." + '\n');
 			
-			// pick one instance for test, the rest for training
-			int choice = 0, corresponding_label; 
-			Image picked_instance;
+			int size = dataset.size();
+			
+			// the training accuracies of all the iterations at once when a KNN has a cache of the dataset, an accuracy()
+			// over the n - 1 training rows of each iteration otherwise
+			double[][] training_accuracies = new double[classifiers.size()][];
+			
+			for (int j = 0; j < classifiers.size(); j++)
+				if (classifiers.get(j) instanceof KnnClassifier)
+					training_accuracies[j] = ((KnnClassifier) classifiers.get(j)).leave_one_out_training_accuracies(dataset);
 			
-			for (int i = 0; i < datapoints.size(); i++) {
-				// pick one for test, remove it from dataset so we can do our training
-				picked_instance = datapoints.get(choice);
-				corresponding_label = dataset.get(picked_instance);
-				dataset.remove_datapoint(picked_instance);
+			for (int i = 0; i < size; i++) {
+				// pick the i-th instance for test, the rest is the training set
+				int[] training_rows = new int[size - 1];
+				
+				for (int row = 0, j = 0; row < size; row++)
+					if (row != i)
+						training_rows[j++] = row;
+				
+				Dataset train_dataset = new DatasetView(dataset, training_rows);
+				Image picked_instance = dataset.get_image(i);
+				int corresponding_label = dataset.get_label(i);
 				
 				for (int j = 0; j < classifiers.size(); j++) {
 					// training each classifier on the new dataset = (original_dataset - picked_instance)
-					classifiers.get(j).train(dataset);
+					classifiers.get(j).train(train_dataset);
 					
 					// adding results to each list
-					training_accs.get(j).add(classifiers.get(j).accuracy(dataset));
+					training_accs.get(j).add(training_accuracies[j] != null ? training_accuracies[j][i] : classifiers.get(j).accuracy(train_dataset));
 					test_accs.get(j).add( (classifiers.get(j).predict(picked_instance) == corresponding_label) ? 1.0 : 0.0);
 				}
-				
-				// return the picked instance to the original dataset
-				dataset.add_datapoint(picked_instance, corresponding_label);
 			}
 		}
 		else {
@@ -119,32 +140,27 @@ public final class Evaluation {
 			// shuffle the indices list
 			Collections.shuffle(all_indices);
 			
-			// constructing a list of indices
-			List<List<Integer>> k_index_lists = new ArrayList<>();
+			// constructing the k folds ( consecutive groups of the shuffled indices )
+			List<int[]> k_index_lists = new ArrayList<>();
 			
-			for (int i = 0; i < k; i++) {
-				// get the [group_size] first indices from all_lists list	
-				k_index_lists.add(all_indices.stream().limit(group_size).collect(Collectors.toList()));
-				
-				// remove them so we don't get the same indices the next iteration
-				all_indices.removeAll(all_indices.stream().limit(group_size).collect(Collectors.toList()));
-			}
+			for (int i = 0; i < k; i++) 
+				k_index_lists.add(all_indices.subList(i * group_size, (i + 1) * group_size).stream().mapToInt(Integer::intValue).toArray());
 			
 			// perform the k-fold cross val
 			for (int test_index = 0; test_index < k; test_index++) {
-				// constructing the kth_test_dataset
-				Dataset test_dataset = new Dataset(); // very interesting behaviour, declaring a var inside the loop solves the lambdas final/eventually_final field issue.
-				k_index_lists.get(test_index).stream().map(datapoints::get).forEach(img -> test_dataset.add_datapoint(img, img.get_label()));
+				// the kth fold is the test dataset
+				Dataset test_dataset = new DatasetView(dataset, k_index_lists.get(test_index));
 				
 				// the rest is for training
-				Dataset train_dataset = new Dataset();
-				int test_index_copy = test_index; // just to surpass the eventually final constraint
-				List<Integer> training_indices = k_index_lists.stream()
-															  .flatMap(List::stream)
-															  .filter(i -> !k_index_lists.get(test_index_copy).contains(i))
-															  .collect(Collectors.toList());
+				int[] training_indices = new int[(k - 1) * group_size];
+				
+				for (int fold = 0, j = 0; fold < k; fold++)
+					if (fold != test_index) {
+						System.arraycopy(k_index_lists.get(fold), 0, training_indices, j, group_size);
+						j += group_size;
+					}
 				
-				training_indices.stream().map(datapoints::get).forEach(img -> train_dataset.add_datapoint(img, img.get_label()));
+				Dataset train_dataset = new DatasetView(dataset, training_indices);
 				
 				for (int j = 0; j < classifiers.size(); j++) {
 					// training each classifier on new dataset ( the other K-1 groups/folds ) 
@@ -202,10 +218,9 @@ public final class Evaluation {
 			assert classifiers.get(i) != null;
 		
 		List<ConfusionMatrix> matrices = new ArrayList<>(); // to be returned
-		Set<Image> datapoints = test_dataset.keySet();
 		
 		// get the true labels respectively
-		List<Integer> true_labels = datapoints.stream().map(img -> img.get_label()).collect(Collectors.toList()); 
+		List<Integer> true_labels = IntStream.range(0, test_dataset.size()).mapToObj(test_dataset::get_label).collect(Collectors.toList()); 
 		
 		for (AbstractClassifier classifier : classifiers) {
 			// train the classifer on the training dataset
@@ -213,7 +228,7 @@ public final class Evaluation {
 			System.out.println(classifier.accuracy(train_dataset));
 			
 			// construct the predicted labels list
-			List<Integer> predicted_labels = datapoints.stream().map(img -> classifier.predict(img)).collect(Collectors.toList());
+			List<Integer> predicted_labels = Arrays.stream(classifier.predict_batch(test_dataset)).boxed().collect(Collectors.toList());
 			
 			// construct the confusion matrix of the classifer and add it to the list
 			matrices.add(new ConfusionMatrix(true_labels, predicted_labels));
@@ -222,6 +237,110 @@ public final class Evaluation {
 		return matrices;
 	}
 	
+	public static Map<String, List<ConfusionMatrix>> k_sweep(KnnClassifier knn, Dataset train_dataset, Dataset test_dataset, int k_max) {
+		/*
+		 * Confusion matrices ( so the accuracies ) of knn on test_dataset for every k in [1; k_max] and every voting rule,
+		 * from a single neighbour search per test image: the sorted list of its k_max nearest training images
+		 * ( KnnClassifier.nearest_neighbours ), the k nearest are its first k entries.
+		 * 
+		 * Returns voting rule -> the matrices of k = 1 .. k_max ( index k - 1 ), empty lists for an empty test_dataset.
+		 * With "majority" they are the ones of new KnnClassifier(k, ...) ( same smallest label wins on ties ), the training
+		 * images at the same distance included: both keep the k smallest ( distance, row ). The k of knn itself is not used.
+		 * 
+		 * "distance": the neighbours at distance 0, if any, are the only ones to vote.
+		 * 
+		 * k_max can be above the number of training images knn keeps ( all of them, or fewer with a reduction ): the
+		 * k above it vote with all the neighbours found, like new KnnClassifier(k, ...) does.
+		 */
+		assert k_max > 0;
+		
+		knn.train(train_dataset);
+		
+		int size = test_dataset.size();
+		Map<String, List<ConfusionMatrix>> matrices = new LinkedHashMap<>();
+		
+		if (size == 0) {
+			// no confusion matrix of nothing
+			for (String rule : VOTING_RULES)
+				matrices.put(rule, new ArrayList<>());
+			
+			return matrices;
+		}
+		
+		int[] labels = new int[size * k_max];
+		double[] distances = new double[size * k_max];
+		int[] found = knn.nearest_neighbours(test_dataset, k_max, labels, distances);
+		
+		// the labels of the neighbours, increasing: the votes go to their index ( any label works, i.e -1 ),
+		// and the smallest index is the smallest label on ties
+		int[] classes = IntStream.range(0, size)
+								 .flatMap(row -> IntStream.range(row * k_max, row * k_max + found[row]))
+								 .map(i -> labels[i]).distinct().sorted().toArray();
+		int n_labels = classes.length;
+		List<Integer> true_labels = IntStream.range(0, size).mapToObj(test_dataset::get_label).collect(Collectors.toList());
+		
+		// predictions[rule][k - 1][row]
+		int[][][] predictions = new int[VOTING_RULES.size()][k_max][size];
+		
+		for (int row = 0; row < size; row++) {
+			// running votes of the first k neighbours, one more neighbour per k
+			double[][] votes = new double[VOTING_RULES.size()][n_labels];
+			int[] zero_votes = new int[n_labels]; // "distance" votes of the neighbours at distance 0
+			
+			for (int k = 1; k <= k_max; k++) {
+				// no k-th neighbour: the same votes as k - 1
+				if (k <= found[row]) {
+					int label = Arrays.binarySearch(classes, labels[row * k_max + k - 1]);
+					double distance = distances[row * k_max + k - 1];
+					
+					votes[0][label]++;
+					votes[2][label] += 1.0 / k;
+					
+					if (distance == 0)
+						zero_votes[label]++;
+					else
+						votes[1][label] += 1.0 / distance;
+				}
+				
+				predictions[0][k - 1][row] = classes[argmax(votes[0])];
+				predictions[1][k - 1][row] = classes[distances[row * k_max] == 0 ? argmax(zero_votes) : argmax(votes[1])];
+				predictions[2][k - 1][row] = classes[argmax(votes[2])];
+			}
+		}
+		
+		for (int rule = 0; rule < VOTING_RULES.size(); rule++) {
+			List<ConfusionMatrix> rule_matrices = new ArrayList<>();
+			
+			for (int k = 1; k <= k_max; k++)
+				rule_matrices.add(new ConfusionMatrix(true_labels, Arrays.stream(predictions[rule][k - 1]).boxed().collect(Collectors.toList())));
+			
+			matrices.put(VOTING_RULES.get(rule), rule_matrices);
+		}
+		
+		return matrices;
+	}
+	
+	private static int argmax(double[] votes) {
+		// smallest label on ties
+		int best = 0;
+		
+		for (int label = 1; label < votes.length; label++)
+			if (votes[label] > votes[best])
+				best = label;
+		
+		return best;
+	}
+	
+	private static int argmax(int[] votes) {
+		int best = 0;
+		
+		for (int label = 1; label < votes.length; label++)
+			if (votes[label] > votes[best])
+				best = label;
+		
+		return best;
+	}
+	
 	public static List<Double> train_test_split_accuracy(List<AbstractClassifier> classifiers, Dataset dataset, double train_percentage, boolean verbose) {
 		/*
 		 * This method will split the dataset into two datasets, using the training_percentage.
@@ -269,40 +388,36 @@ public final class Evaluation {
 		 *  will do stratified random sampling by taking split_percentage of each class.
 		 *  
 		 *  Returns a list of datasets, first is training set second is test set. 
+		 *  Both are DatasetViews over the passed dataset: normalizing one of them ( i.e fitting a normalizer on the
+		 *  training set, then applying it to the test set ) gives it its own normalized rows, the dataset is untouched.
 		 */
 		
 		assert dataset != null && dataset.size() > 0;
 		assert train_percentage > 0 && train_percentage < 1;
 		
-		Dataset train_set = new Dataset();
-		Dataset test_set = new Dataset();
+		List<Integer> train_rows = new ArrayList<>();
+		List<Integer> test_rows = new ArrayList<>();
 		
-		int test_sample_size, label;
+		int test_sample_size;
 		// for each class/stratum get random sample of size stratum_size * split_percentage, the rest to the test_set
-		for (Map.Entry<Integer, List<Image>> entry : dataset.get_stratums().entrySet()) {
-			// construct a list of indices of the size of the current stratum
-			List<Integer> indices = IntStream.range(0, entry.getValue().size()).boxed().collect(Collectors.toList());
-			
-			// shuffle the list
+		for (List<Integer> stratum : new DatasetView(dataset).get_stratum_rows().values()) {
+			// shuffle the rows of the current stratum
+			List<Integer> indices = new ArrayList<>(stratum);
 			Collections.shuffle(indices);
 			
 			// take the first (stratum_size -  [stratum_size * split_percentage]) and add them to the test_set
 			test_sample_size = indices.size() - (int) Math.floor(indices.size() * train_percentage);
-			label = entry.getKey();
 			
-			for (int i = 0; i < test_sample_size; i++) {
-				Image img = entry.getValue().get(indices.get(i));
-				test_set.add_datapoint(img, label);
-			}
+			test_rows.addAll(indices.subList(0, test_sample_size));
 			
 			// rest to train set
-			for (; test_sample_size < indices.size(); test_sample_size++) {
-				Image img = entry.getValue().get(indices.get(test_sample_size));
-				train_set.add_datapoint(img, label);
-			}
-			
+			train_rows.addAll(indices.subList(test_sample_size, indices.size()));
 		}
 		
+		// both sets are views over dataset, nothing is copied
+		Dataset train_set = new DatasetView(dataset, train_rows.stream().mapToInt(Integer::intValue).toArray());
+		Dataset test_set = new DatasetView(dataset, test_rows.stream().mapToInt(Integer::intValue).toArray());
+		
 //		System.out.println(train_set.size() + " + " + test_set.size() + " = " + dataset.size());
 //		
 //		List<Image> imgs = test_set.keySet().stream().collect(Collectors.toList());
@@ -1,5 +1,8 @@
 package main;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -22,16 +25,25 @@ import eval.CrossValEntry;
 import eval.Evaluation;
 import classifiers.AbstractClassifier;
 import classifiers.Centroid;
+import classifiers.DistanceCache;
+import classifiers.DistanceMetric;
+import classifiers.HnswIndex;
+import classifiers.KdTreeIndex;
 import classifiers.KmeansClassifier;
 import classifiers.KnnClassifier;
+import classifiers.LshIndex;
+import classifiers.NeighbourIndex;
+import classifiers.PqKnnClassifier;
+import classifiers.PrototypeReduction;
+import classifiers.VpTreeIndex;
 
 public class Main {
-
+	
 	public static void main(String[] args) throws IOException {
 		// DEMO
 		System.out.println("Working Directory = " + System.getProperty("user.dir"));
-		
-		
+
+
 //		Demo.img();
 //		Demo.dataset();
 //		Demo.split_dataset_into_train_test();
@@ -42,6 +54,22 @@ public class Main {
 //		Demo.compare_multiple_classifiers_with_train_test_split();
 //		Demo.compare_multiple_classifiers_with_k_fold();
 //		Demo.confusion_matrix();
+//		Demo.fast_parser_check();
+//		Demo.streaming_dataset();
+//		Demo.reduced_precision_parity();
+//		Demo.normalization();
+//		Demo.fused_representations();
+//		Demo.knn_allocations();
+//		Demo.kd_tree_index();
+//		Demo.vp_tree_index();
+//		Demo.hnsw_index();
+//		Demo.lsh_index();
+//		Demo.pq_knn();
+//		Demo.batch_prediction();
+//		Demo.distance_metrics();
+//		Demo.distance_cache();
+//		Demo.k_sweep();
+//		Demo.prototype_reduction();
 	}
 	
 	static class Demo {
@@ -85,7 +113,7 @@ public class Main {
 			Double[] d1 = {1.2, 3.4};
 			Image img1 = new Image(new Representation(d1, "representation_type"));
 			img1.set_label(1);
-		
+			
 			// get infos about the img 
 			
 			try {
@@ -98,7 +126,7 @@ public class Main {
 			} catch (BadRepresentationFileException e) {
 				e.printStackTrace();
 			}
-			
+		
 		}
 		
 		public static void dataset() {
@@ -125,7 +153,7 @@ public class Main {
 				
 				for (Image img : imgs)
 					dataset.add_datapoint(img, img.get_label()); // or specify the label yourself 
-					
+			
 			} catch (BadRepresentationFileException e) {
 				e.printStackTrace();
 			}
@@ -148,7 +176,7 @@ public class Main {
 				// example getting all rabbit imgs ( label = 2 ) [ assuming they're in the dataset ]
 				for (Image rabbit_img : dataset.get_stratums().get(2)) 
 					System.out.println(rabbit_img);
-				
+			
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -172,7 +200,7 @@ public class Main {
 				System.out.println("The complete dataset is a " + dataset);
 				System.out.println("Training set size = " + train_set.size());
 				System.out.println("Training set size = " + test_set.size());
-				
+			
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -223,7 +251,7 @@ public class Main {
 				int k = 9; // we want to have 9 clusters cuz we know we have 9 classes
 				int p = 4; // define which distance we'll use
 				long max_iter = 100; // max number of iterations
-
+				
 				KmeansClassifier abs_random_kmeans = new KmeansClassifier(k, p, max_iter, "random");
 				System.out.println(abs_random_kmeans);
 				
@@ -426,6 +454,810 @@ public class Main {
 				e.printStackTrace();
 			}
 		}
+		
+		public static void streaming_dataset() {
+			/*
+			 * For directories that don't fit in RAM: only the paths and labels are indexed,
+			 * the representations are read chunk by chunk when needed.
+			 */
+			
+			try {
+				StreamingDataset training_dataset = new StreamingDataset("project_files/GFD/train", 256); // 256 images per chunk
+				StreamingDataset test_dataset = new StreamingDataset("project_files/GFD/test");
+				
+				KmeansClassifier kmeans = new KmeansClassifier(9, 2);
+				kmeans.train(training_dataset);
+				
+				System.out.println("train acc = " + kmeans.accuracy(training_dataset));
+				System.out.println("test acc = " + kmeans.accuracy(test_dataset));
+				
+				// iterating by hand
+				for (StreamingDataset.Chunk chunk : test_dataset)
+					for (int row = 0; row < chunk.size(); row++)
+						System.out.println("label " + chunk.get_label(row) + " -> predicted " + kmeans.predict(chunk.get_features(), chunk.get_offset(row)));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		public static void reduced_precision_parity() {
+			/*
+			 * Accuracy parity report of the reduced precision storages of KnnClassifier ( float32, int8 )
+			 * against the double one, on the train/test folders of each representation.
+			 * agreement = how many test predictions are the same as with doubles.
+			 */
+			
+			String[] storages = {"double", "float32", "int8"};
+			
+			for (String rep : new String[] {"E34", "GFD", "SA", "F0"}) {
+				try {
+					Dataset training_dataset = new Dataset("project_files/" + rep + "/train");
+					Dataset test_dataset = new Dataset("project_files/" + rep + "/test");
+					
+					System.out.println(rep + " : " + training_dataset.size() + " training vectors, "
+							+ "double = " + (long) training_dataset.size() * (training_dataset.get_dim() * Double.BYTES + Integer.BYTES) + " bytes, "
+							+ "float32 = " + new FloatFeatures(training_dataset).get_memory_bytes() + " bytes, "
+							+ "int8 = " + new QuantizedFeatures(training_dataset).get_memory_bytes() + " bytes");
+					
+					for (int p = 1; p <= 2; p++)
+						for (int k : new int[] {1, 3, 5}) {
+							int[] reference = null;
+							StringBuilder sb = new StringBuilder("   k = " + k + ", p = " + p + " :");
+							
+							for (String storage : storages) {
+								KnnClassifier knn = new KnnClassifier(k, p, storage);
+								knn.train(training_dataset);
+								
+								int[] predictions = new int[test_dataset.size()];
+								int correct = 0, agree = 0;
+								
+								for (int row = 0; row < test_dataset.size(); row++) {
+									predictions[row] = knn.predict(test_dataset.get_image(row));
+									
+									if (predictions[row] == test_dataset.get_label(row))
+										correct++;
+									
+									if (reference != null && predictions[row] == reference[row])
+										agree++;
+								}
+								
+								if (reference == null)
+									reference = predictions;
+								
+								sb.append(String.format("  %s acc = %.4f", storage, (double) correct / test_dataset.size()));
+								if (!storage.equals(storages[0]))
+									sb.append(String.format(" ( agreement %.4f )", (double) agree / test_dataset.size()));
+							}
+							
+							System.out.println(sb);
+						}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		public static void normalization() {
+			/*
+			 * KNN accuracy on raw, min-max scaled and z-score standardized features.
+			 * The normalizer is fitted on the training set only, the test set is put in the same space with it
+			 * ( applying it to raw test images inside predict would give the same predictions ).
+			 * 
+			 * Then the same on a split of the whole directory: the two views get their own normalized rows ( the
+			 * dataset stays raw ), and the folds of a cross validation over the normalized training view stay normalized.
+			 */
+			
+			for (String rep : new String[] {"E34", "GFD", "SA", "F0"}) {
+				try {
+					Dataset training_dataset = new Dataset("project_files/" + rep + "/train");
+					Dataset test_dataset = new Dataset("project_files/" + rep + "/test");
+					StringBuilder sb = new StringBuilder(rep + " :");
+					
+					for (String method : new String[] {"raw", "min-max", "z-score"}) {
+						if (!method.equals("raw")) 
+							test_dataset.normalize(training_dataset.normalize(method));
+						
+						KnnClassifier knn = new KnnClassifier(3, 2);
+						knn.train(training_dataset);
+						
+						sb.append(String.format("  %s acc = %.4f", method, knn.accuracy(test_dataset)));
+					}
+					
+					List<Dataset> split = Evaluation.split_dataset(new Dataset("project_files/" + rep), 0.7);
+					split.get(1).normalize(split.get(0).normalize("z-score"));
+					
+					KnnClassifier knn = new KnnClassifier(3, 2);
+					knn.train(split.get(0));
+					
+					sb.append(String.format("  | split z-score acc = %.4f, 5-fold CV acc = %.4f", knn.accuracy(split.get(1)), 
+												Evaluation.cross_validation(knn, split.get(0), 5).get_test_acc()));
+					
+					System.out.println(sb);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		public static void fused_representations() {
+			/*
+			 * The 4 representations of each image joined in one dataset, then KNN on some combinations of them
+			 * ( select() builds them from the rows, the files are read once ).
+			 * 
+			 * Uses the train / test directories of project_files ( same split for the 4 representations ),
+			 * s01n001 has no SA file in train so it is skipped from the fused training dataset.
+			 */
+			
+			String[] reps = {"E34", "GFD", "SA", "F0"};
+			
+			try {
+				FusedDataset training_dataset = new FusedDataset(Arrays.stream(reps).map(rep -> "project_files/" + rep + "/train").toArray(String[]::new));
+				FusedDataset test_dataset = new FusedDataset(Arrays.stream(reps).map(rep -> "project_files/" + rep + "/test").toArray(String[]::new));
+				
+				System.out.println(training_dataset);
+				
+				String[][] combinations = {{"E34"}, {"GFD"}, {"E34", "GFD"}, {"GFD", "F0"}, {"E34", "GFD", "SA"}, reps};
+				
+				for (String[] blocks : combinations) {
+					Dataset train = training_dataset.select(blocks), test = test_dataset.select(blocks);
+					
+					// z-score, so a block doesn't dominate the distance just because of its scale
+					test.normalize(train.normalize("z-score"));
+					
+					KnnClassifier knn = new KnnClassifier(3, 2);
+					knn.train(train);
+					
+					System.out.println(String.format("%-16s ( %3d dims ) : acc = %.4f", train.get_representation_type(), 
+															train.get_dim(), knn.accuracy(test)));
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		public static void knn_allocations() {
+			/*
+			 * Bytes allocated by KnnClassifier.predict once warmed up ( expected 0 ), measured with the
+			 * per-thread allocation counter of the JVM, and the throughput on a big training set
+			 * ( 64 noisy copies of each GFD training vector ).
+			 */
+			
+			com.sun.management.ThreadMXBean thread_bean = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+			long thread_id = Thread.currentThread().getId();
+			Random random = new Random(42);
+			
+			try {
+				Dataset test_dataset = new Dataset("project_files/GFD/test");
+				Dataset training_dataset = noisy_copies(new Dataset("project_files/GFD/train"), 64, 0.01, random);
+				
+				for (String storage : new String[] {"double", "float32", "int8"}) {
+					KnnClassifier knn = new KnnClassifier(5, 2, storage);
+					knn.train(training_dataset);
+					
+					// warm up ( JIT, scratch buffers )
+					for (int i = 0; i < 200; i++)
+						knn.predict(test_dataset.get_image(i % test_dataset.size()));
+					
+					int n_predictions = 2000, checksum = 0;
+					long allocated = thread_bean.getThreadAllocatedBytes(thread_id);
+					long start = System.nanoTime();
+					
+					for (int i = 0; i < n_predictions; i++)
+						checksum += knn.predict(test_dataset.get_image(i % test_dataset.size()));
+					
+					long elapsed = System.nanoTime() - start;
+					allocated = thread_bean.getThreadAllocatedBytes(thread_id) - allocated;
+					
+					System.out.println(String.format("%-8s : %d training vectors, %.1f bytes / predict, %.0f predict / s  ( checksum %d )", 
+							storage, training_dataset.size(), (double) allocated / n_predictions, n_predictions / (elapsed / 1e9), checksum));
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		public static void kd_tree_index() {
+			/*
+			 * Exact KNN with a KD-tree index against the full scan, on E34 ( 16 values ) with a training set of
+			 * 50 noisy copies of each training vector: same predictions, distances computed per query, time.
+			 */
+			
+			Random random = new Random(42);
+			
+			try {
+				Dataset training_dataset = noisy_copies(new Dataset("project_files/E34/train"), 50, 0.02, random);
+				Dataset test_dataset = new Dataset("project_files/E34/test");
+				
+				for (int p = 1; p <= 3; p++) {
+					KnnClassifier knn = new KnnClassifier(5, p);
+					KnnClassifier indexed_knn = new KnnClassifier(5, p, new KdTreeIndex());
+					knn.train(training_dataset);
+					indexed_knn.train(training_dataset);
+					
+					int same = 0;
+					long full_scan_time = 0, index_time = 0;
+					
+					for (int repeat = 0; repeat < 20; repeat++)
+						for (int row = 0; row < test_dataset.size(); row++) {
+							long start = System.nanoTime();
+							int expected = knn.predict(test_dataset.get_image(row));
+							full_scan_time += System.nanoTime() - start;
+							
+							start = System.nanoTime();
+							int predicted = indexed_knn.predict(test_dataset.get_image(row));
+							index_time += System.nanoTime() - start;
+							
+							if (repeat == 0 && predicted == expected)
+								same++;
+						}
+					
+					System.out.println(String.format("p = %d : %d / %d same predictions, %.1f distances / query instead of %d, %.2f ms vs %.2f ms ( full scan )", 
+							p, same, test_dataset.size(), indexed_knn.get_index().get_average_evaluations(), training_dataset.size(),
+							index_time / 1e6, full_scan_time / 1e6));
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		public static void vp_tree_index() {
+			/*
+			 * Distances computed per query by the exact indexes ( KD-tree, VP-tree ) on the high dimensional
+			 * representations, against the full scan ( 50 noisy copies of each training vector ).
+			 */
+			
+			Random random = new Random(42);
+			
+			for (String rep : new String[] {"SA", "GFD", "F0"})
+				try {
+					Dataset training_dataset = noisy_copies(new Dataset("project_files/" + rep + "/train"), 50, 0.02, random);
+					Dataset test_dataset = new Dataset("project_files/" + rep + "/test");
+					
+					for (int p = 1; p <= 3; p++) {
+						KnnClassifier knn = new KnnClassifier(5, p);
+						knn.train(training_dataset);
+						
+						StringBuilder sb = new StringBuilder(String.format("%-3s ( %3d values ) p = %d :", rep, training_dataset.get_dim(), p));
+						
+						for (NeighbourIndex index : new NeighbourIndex[] {new KdTreeIndex(), new VpTreeIndex()}) {
+							KnnClassifier indexed_knn = new KnnClassifier(5, p, index);
+							indexed_knn.train(training_dataset);
+							
+							int same = 0;
+							for (int row = 0; row < test_dataset.size(); row++)
+								if (indexed_knn.predict(test_dataset.get_image(row)) == knn.predict(test_dataset.get_image(row)))
+									same++;
+							
+							sb.append(String.format("  %s saved %.0f of %d distances / query ( %.1f %% ), %d / %d same predictions", 
+									index.getClass().getSimpleName(), training_dataset.size() - index.get_average_evaluations(), training_dataset.size(), 
+									100 * index.get_saved_fraction(), same, test_dataset.size()));
+						}
+						
+						System.out.println(sb);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+		}
+		
+		public static void hnsw_index() {
+			/*
+			 * Accuracy vs latency of the approximate HNSW index against the full scan ( k = 5, p = 2 ), on GFD and F0
+			 * with 100 noisy copies of each training vector, for several ef_search. Everything is seeded, so the
+			 * numbers are reproducible ( up to the timings ).
+			 * 
+			 * The graph is built on the first half of the training set, the second half is inserted incrementally.
+			 */
+			
+			int k = 5, p = 2;
+			
+			for (String rep : new String[] {"GFD", "F0"})
+				try {
+					Random random = new Random(42);
+					Dataset full_training_dataset = noisy_copies(new Dataset("project_files/" + rep + "/train"), 100, 0.05, random);
+					Dataset test_dataset = noisy_copies(new Dataset("project_files/" + rep + "/test"), 5, 0.05, random);
+					
+					KnnClassifier knn = new KnnClassifier(k, p);
+					knn.train(full_training_dataset);
+					
+					int[] expected = new int[test_dataset.size()];
+					long start = System.nanoTime();
+					
+					for (int row = 0; row < test_dataset.size(); row++)
+						expected[row] = knn.predict(test_dataset.get_image(row));
+					
+					double full_scan_time = (System.nanoTime() - start) / 1e6;
+					System.out.println(String.format("%s : %d training vectors, full scan accuracy = %.4f, %.3f ms / query", rep, 
+							full_training_dataset.size(), accuracy(expected, test_dataset), full_scan_time / test_dataset.size()));
+					
+					// build on the first half, insert the second one
+					Dataset training_dataset = new Dataset();
+					for (int row = 0; row < full_training_dataset.size() / 2; row++)
+						training_dataset.add_datapoint(full_training_dataset.get_image(row), full_training_dataset.get_label(row));
+					
+					HnswIndex index = new HnswIndex(16, 200, 50);
+					KnnClassifier approximate_knn = new KnnClassifier(k, p, index);
+					
+					start = System.nanoTime();
+					approximate_knn.train(training_dataset);
+					
+					for (int row = full_training_dataset.size() / 2; row < full_training_dataset.size(); row++)
+						training_dataset.add_datapoint(full_training_dataset.get_image(row), full_training_dataset.get_label(row));
+					
+					index.insert_new_rows();
+					System.out.println(String.format("   %s built in %.0f ms", index, (System.nanoTime() - start) / 1e6));
+					
+					for (int ef_search : new int[] {5, 10, 20, 50, 100}) {
+						index.set_ef_search(ef_search);
+						
+						int[] predicted = new int[test_dataset.size()];
+						start = System.nanoTime();
+						
+						for (int row = 0; row < test_dataset.size(); row++)
+							predicted[row] = approximate_knn.predict(test_dataset.get_image(row));
+						
+						double time = (System.nanoTime() - start) / 1e6;
+						int same = 0;
+						
+						for (int row = 0; row < test_dataset.size(); row++)
+							if (predicted[row] == expected[row])
+								same++;
+						
+						System.out.println(String.format("   ef_search = %3d : accuracy = %.4f, %.2f %% same predictions as the full scan, %.3f ms / query ( x%.1f )", 
+								ef_search, accuracy(predicted, test_dataset), 100.0 * same / test_dataset.size(), 
+								time / test_dataset.size(), full_scan_time / time));
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+		}
+		
+		public static void lsh_index() {
+			/*
+			 * Accuracy vs distances / latency of the approximate LSH index against the full scan ( k = 5 ), for p = 1
+			 * and p = 2 on E34, GFD and F0 with 50 noisy copies of each training vector, for several numbers of probes.
+			 * Unlike the graph of HNSW, the memory and build time of the tables only depend on the size of the training
+			 * set ( n_tables flat arrays ), the build is reported too.
+			 */
+			
+			int k = 5;
+			
+			for (String rep : new String[] {"E34", "GFD", "F0"})
+				try {
+					Random random = new Random(42);
+					Dataset training_dataset = noisy_copies(new Dataset("project_files/" + rep + "/train"), 50, 0.05, random);
+					Dataset test_dataset = noisy_copies(new Dataset("project_files/" + rep + "/test"), 5, 0.05, random);
+					
+					for (int p = 1; p <= 2; p++) {
+						KnnClassifier knn = new KnnClassifier(k, p);
+						knn.train(training_dataset);
+						
+						int[] expected = new int[test_dataset.size()];
+						long start = System.nanoTime();
+						
+						for (int row = 0; row < test_dataset.size(); row++)
+							expected[row] = knn.predict(test_dataset.get_image(row));
+						
+						double full_scan_time = (System.nanoTime() - start) / 1e6;
+						System.out.println(String.format("%s p = %d : %d training vectors, full scan accuracy = %.4f, %.3f ms / query", rep, p, 
+								training_dataset.size(), accuracy(expected, test_dataset), full_scan_time / test_dataset.size()));
+						
+						for (int n_probes : new int[] {1, 4, 16}) {
+							LshIndex index = new LshIndex(8, 8, n_probes, 0.5, 42);
+							KnnClassifier approximate_knn = new KnnClassifier(k, p, index);
+							
+							start = System.nanoTime();
+							approximate_knn.train(training_dataset);
+							double build_time = (System.nanoTime() - start) / 1e6;
+							
+							int[] predicted = new int[test_dataset.size()];
+							start = System.nanoTime();
+							
+							for (int row = 0; row < test_dataset.size(); row++)
+								predicted[row] = approximate_knn.predict(test_dataset.get_image(row));
+							
+							double time = (System.nanoTime() - start) / 1e6;
+							int same = 0;
+							
+							for (int row = 0; row < test_dataset.size(); row++)
+								if (predicted[row] == expected[row])
+									same++;
+							
+							System.out.println(String.format("   %2d probes : accuracy = %.4f, %.2f %% same predictions, %.0f distances / query, %.3f ms / query ( x%.1f ), built in %.0f ms", 
+									n_probes, accuracy(predicted, test_dataset), 100.0 * same / test_dataset.size(), index.get_average_evaluations(), 
+									time / test_dataset.size(), full_scan_time / time, build_time));
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+		}
+		
+		public static void pq_knn() {
+			/*
+			 * Memory vs accuracy of the product-quantized KNN ( k = 5, p = 2 ) against the full scan over the doubles,
+			 * on GFD, SA and F0 with 50 noisy copies of each training vector: plain PQ, PQ + exact re-rank,
+			 * and the inverted file version ( IVF-PQ ) with re-rank.
+			 */
+			
+			int k = 5, p = 2;
+			
+			for (String rep : new String[] {"GFD", "SA", "F0"})
+				try {
+					Random random = new Random(42);
+					Dataset training_dataset = noisy_copies(new Dataset("project_files/" + rep + "/train"), 50, 0.05, random);
+					Dataset test_dataset = noisy_copies(new Dataset("project_files/" + rep + "/test"), 5, 0.05, random);
+					
+					KnnClassifier knn = new KnnClassifier(k, p);
+					knn.train(training_dataset);
+					
+					int[] expected = new int[test_dataset.size()];
+					long start = System.nanoTime();
+					
+					for (int row = 0; row < test_dataset.size(); row++)
+						expected[row] = knn.predict(test_dataset.get_image(row));
+					
+					double full_scan_time = (System.nanoTime() - start) / 1e6;
+					long double_bytes = (long) training_dataset.size() * training_dataset.get_dim() * Double.BYTES;
+					
+					System.out.println(String.format("%s : %d training vectors, full scan accuracy = %.4f, %.3f ms / query, %d bytes of doubles", rep, 
+							training_dataset.size(), accuracy(expected, test_dataset), full_scan_time / test_dataset.size(), double_bytes));
+					
+					PqKnnClassifier[] classifiers = {
+							new PqKnnClassifier(k, p, 8, 256, 0, 1, 0),
+							new PqKnnClassifier(k, p, 8, 256, 0, 1, 50),
+							new PqKnnClassifier(k, p, 8, 256, 32, 4, 50)
+					};
+					
+					for (PqKnnClassifier pq_knn : classifiers) {
+						start = System.nanoTime();
+						pq_knn.train(training_dataset);
+						double build_time = (System.nanoTime() - start) / 1e6;
+						
+						int[] predicted = new int[test_dataset.size()];
+						start = System.nanoTime();
+						
+						for (int row = 0; row < test_dataset.size(); row++)
+							predicted[row] = pq_knn.predict(test_dataset.get_image(row));
+						
+						double time = (System.nanoTime() - start) / 1e6;
+						int same = 0;
+						
+						for (int row = 0; row < test_dataset.size(); row++)
+							if (predicted[row] == expected[row])
+								same++;
+						
+						System.out.println(String.format("   %s%n      accuracy = %.4f, %.2f %% same predictions, %d bytes ( x%.1f smaller ), %.3f ms / query ( x%.1f ), trained in %.0f ms", 
+								pq_knn, accuracy(predicted, test_dataset), 100.0 * same / test_dataset.size(), pq_knn.get_memory_bytes(), 
+								(double) double_bytes / pq_knn.get_memory_bytes(), time / test_dataset.size(), full_scan_time / time, build_time));
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+		}
+		
+		public static void batch_prediction() {
+			/*
+			 * predict_batch against one predict per query ( KNN k = 5 and k-means, p = 1 and 2 ), on 100 noisy copies
+			 * of each training vector. The predictions must be the same, only the time changes.
+			 * The k-means times are tiny ( 9 centroids ), they are mostly JIT warm-up.
+			 */
+			
+			for (String rep : new String[] {"E34", "GFD", "F0"})
+				try {
+					Random random = new Random(42);
+					Dataset training_dataset = noisy_copies(new Dataset("project_files/" + rep + "/train"), 100, 0.05, random);
+					Dataset test_dataset = noisy_copies(new Dataset("project_files/" + rep + "/test"), 5, 0.05, random);
+					
+					for (int p = 1; p <= 2; p++)
+						for (AbstractClassifier classifier : new AbstractClassifier[] {new KnnClassifier(5, p), new KmeansClassifier(9, p)}) {
+							classifier.train(training_dataset);
+							
+							// 10 times each, so the JIT warm-up doesn't weigh much
+							int[] expected = new int[test_dataset.size()], predicted = null;
+							long start = System.nanoTime();
+							
+							for (int repeat = 0; repeat < 10; repeat++)
+								for (int row = 0; row < test_dataset.size(); row++)
+									expected[row] = classifier.predict(test_dataset.get_features(), test_dataset.get_offset(row));
+							
+							double single_time = (System.nanoTime() - start) / 1e6;
+							
+							start = System.nanoTime();
+							for (int repeat = 0; repeat < 10; repeat++)
+								predicted = classifier.predict_batch(test_dataset);
+							
+							double batch_time = (System.nanoTime() - start) / 1e6;
+							
+							System.out.println(String.format("%-3s %s : same predictions = %b, %.1f ms one by one, %.1f ms in a batch ( x%.1f )", 
+									rep, classifier.toString().trim(), Arrays.equals(expected, predicted), single_time, batch_time, single_time / batch_time));
+						}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+		}
+		
+		public static void distance_metrics() {
+			/*
+			 * KNN ( k = 5 ) with each DistanceMetric, on 20 noisy copies of each training vector: accuracy and time of
+			 * the test set ( one batch ).
+			 */
+			
+			DistanceMetric[] metrics = {DistanceMetric.L1, DistanceMetric.L2, DistanceMetric.minkowski(3), 
+										DistanceMetric.L_INF, DistanceMetric.COSINE, DistanceMetric.CANBERRA};
+			
+			for (String rep : new String[] {"E34", "GFD", "F0"})
+				try {
+					Random random = new Random(42);
+					Dataset training_dataset = noisy_copies(new Dataset("project_files/" + rep + "/train"), 20, 0.05, random);
+					Dataset test_dataset = noisy_copies(new Dataset("project_files/" + rep + "/test"), 2, 0.05, random);
+					
+					for (DistanceMetric metric : metrics) {
+						KnnClassifier knn = new KnnClassifier(5, metric);
+						knn.train(training_dataset);
+						
+						long start = System.nanoTime();
+						int[] predicted = knn.predict_batch(test_dataset);
+						double time = (System.nanoTime() - start) / 1e6;
+						
+						System.out.println(String.format("%-3s %-18s accuracy = %.4f, %.1f ms", rep, metric, accuracy(predicted, test_dataset), time));
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+		}
+		
+		public static void distance_cache() {
+			/*
+			 * Leave-one-out and 10-fold cross validation of KNN ( k = 5, p = 2 ) over E34, computing the distances in
+			 * every iteration against looking them up in a DistanceCache ( built once ). Then the same cache forced
+			 * on disk, on a bigger dataset ( 20 noisy copies of each image ).
+			 * 
+			 * Last, the training accuracies of the leave-one-out in one pass ( KnnClassifier.leave_one_out_training_accuracies )
+			 * against train() + accuracy() for each held-out row, on a grid where most distances are equal ( 0 differ ).
+			 */
+			
+			try {
+				Dataset dataset = new Dataset("project_files/E34");
+				
+				long start = System.nanoTime();
+				DistanceCache cache = new DistanceCache(dataset, DistanceMetric.L2);
+				double build_time = (System.nanoTime() - start) / 1e6;
+				
+				System.out.println(String.format("%s built in %.1f ms", cache, build_time));
+				
+				for (int k : new int[] {dataset.size(), 10})
+					for (KnnClassifier knn : new KnnClassifier[] {new KnnClassifier(5, 2), new KnnClassifier(5, cache)}) {
+						start = System.nanoTime();
+						CrossValEntry result = Evaluation.cross_validation(knn, dataset, k);
+						
+						System.out.println(String.format("   %s, %s : test acc = %.4f, %.1f ms", k == dataset.size() ? "leave-one-out" : k + "-fold", 
+								knn, result.get_test_acc(), (System.nanoTime() - start) / 1e6));
+					}
+				
+				Dataset noisy_dataset = noisy_copies(dataset, 20, 0.05, new Random(42));
+				
+				start = System.nanoTime();
+				
+				try (DistanceCache disk_cache = new DistanceCache(noisy_dataset, DistanceMetric.L2, 1 << 22)) {
+					build_time = (System.nanoTime() - start) / 1e6;
+					System.out.println(String.format("%s built in %.1f ms", disk_cache, build_time));
+					
+					for (KnnClassifier knn : new KnnClassifier[] {new KnnClassifier(5, 2), new KnnClassifier(5, disk_cache)}) {
+						start = System.nanoTime();
+						CrossValEntry result = Evaluation.cross_validation(knn, noisy_dataset, 10);
+						
+						System.out.println(String.format("   10-fold, %s : test acc = %.4f, %.1f ms", knn, result.get_test_acc(), (System.nanoTime() - start) / 1e6));
+					}
+				}
+				
+				// shuffled like in Evaluation.cross_validation, so the rows are not scanned in the order of the grid
+				Dataset grid = new DatasetView(grid_dataset(10, 0));
+				grid.shuffle();
+				DistanceCache grid_cache = new DistanceCache(grid, DistanceMetric.L2);
+				
+				for (int k = 1; k <= 9; k++) {
+					KnnClassifier knn = new KnnClassifier(k, grid_cache);
+					double[] accuracies = knn.leave_one_out_training_accuracies(grid);
+					int mismatches = 0;
+					
+					for (int i = 0; i < grid.size(); i++) {
+						int held_out = i;
+						Dataset train_dataset = new DatasetView(grid, IntStream.range(0, grid.size()).filter(row -> row != held_out).toArray());
+						
+						knn.train(train_dataset);
+						
+						if (knn.accuracy(train_dataset) != accuracies[i])
+							mismatches++;
+					}
+					
+					System.out.println(String.format("   grid leave-one-out, k = %d : %d / %d training accuracies differ from train() + accuracy()", k, mismatches, grid.size()));
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		public static void k_sweep() {
+			/*
+			 * Accuracy of KNN ( p = 2 ) for k = 1 .. 20 and each voting rule, from one neighbour search per test image
+			 * ( Evaluation.k_sweep ), against training and testing a KnnClassifier for each k ( majority vote only ).
+			 * Then the same check on a grid, where most neighbours are at the same distance, and an empty test set.
+			 */
+			
+			int k_max = 20;
+			
+			for (String rep : new String[] {"E34", "GFD", "SA", "F0"})
+				try {
+					Dataset training_dataset = new Dataset("project_files/" + rep + "/train");
+					Dataset test_dataset = new Dataset("project_files/" + rep + "/test");
+					
+					long start = System.nanoTime();
+					Map<String, List<ConfusionMatrix>> matrices = Evaluation.k_sweep(new KnnClassifier(1, 2), training_dataset, test_dataset, k_max);
+					double sweep_time = (System.nanoTime() - start) / 1e6;
+					
+					start = System.nanoTime();
+					double[] accuracies = new double[k_max];
+					
+					for (int k = 1; k <= k_max; k++) {
+						KnnClassifier knn = new KnnClassifier(k, 2);
+						knn.train(training_dataset);
+						accuracies[k - 1] = knn.accuracy(test_dataset);
+					}
+					
+					double separate_time = (System.nanoTime() - start) / 1e6;
+					
+					System.out.println(String.format("%s : sweep in %.1f ms, one classifier per k in %.1f ms", rep, sweep_time, separate_time));
+					
+					for (int k = 1; k <= k_max; k++) {
+						StringBuilder sb = new StringBuilder(String.format("   k = %2d", k));
+						
+						for (Entry<String, List<ConfusionMatrix>> rule : matrices.entrySet())
+							sb.append(String.format("  %s acc = %.4f", rule.getKey(), rule.getValue().get(k - 1).get_accuracy()));
+						
+						sb.append(String.format("  ( KnnClassifier acc = %.4f )", accuracies[k - 1]));
+						System.out.println(sb);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			
+			Dataset training_grid = grid_dataset(10, 0), test_grid = grid_dataset(9, 0.5);
+			Map<String, List<ConfusionMatrix>> matrices = Evaluation.k_sweep(new KnnClassifier(1, 2), training_grid, test_grid, k_max);
+			int differ = 0;
+			
+			for (int k = 1; k <= k_max; k++) {
+				KnnClassifier knn = new KnnClassifier(k, 2);
+				knn.train(training_grid);
+				
+				if (knn.accuracy(test_grid) != matrices.get("majority").get(k - 1).get_accuracy())
+					differ++;
+			}
+			
+			System.out.println(String.format("grid ( ties ) : %d / %d k where the sweep differs from KnnClassifier", differ, k_max));
+			
+			matrices = Evaluation.k_sweep(new KnnClassifier(1, 2), training_grid, new DatasetView(test_grid, new int[0]), k_max);
+			System.out.println("empty test set : " + matrices);
+		}
+		
+		public static void prototype_reduction() {
+			/*
+			 * KNN ( p = 2, k = 1 and 5 ) trained on a reduced training set ( each PrototypeReduction method ) against the
+			 * whole training set ( 20 noisy copies of each training vector ): rows kept, accuracy change and test time.
+			 */
+			
+			for (String rep : new String[] {"E34", "GFD", "SA", "F0"})
+				try {
+					Random random = new Random(42);
+					Dataset training_dataset = noisy_copies(new Dataset("project_files/" + rep + "/train"), 20, 0.05, random);
+					Dataset test_dataset = noisy_copies(new Dataset("project_files/" + rep + "/test"), 5, 0.05, random);
+					
+					for (int k : new int[] {1, 5}) {
+						KnnClassifier full = new KnnClassifier(k, 2);
+						full.train(training_dataset);
+						
+						long start = System.nanoTime();
+						double full_accuracy = full.accuracy(test_dataset);
+						double full_time = (System.nanoTime() - start) / 1e6;
+						
+						System.out.println(String.format("%s k = %d, %d training images : accuracy = %.4f, %.1f ms", rep, k, training_dataset.size(), full_accuracy, full_time));
+						
+						for (String method : PrototypeReduction.METHODS) {
+							KnnClassifier knn = new KnnClassifier(k, 2, "double", method);
+							
+							start = System.nanoTime();
+							knn.train(training_dataset);
+							double train_time = (System.nanoTime() - start) / 1e6;
+							
+							start = System.nanoTime();
+							double accuracy = knn.accuracy(test_dataset);
+							double time = (System.nanoTime() - start) / 1e6;
+							
+							System.out.println(String.format("   %-8s %5.1f %% kept ( x%.1f ), accuracy = %.4f ( %+.4f ), %.1f ms, reduced in %.0f ms", 
+									method, 100 / knn.get_compression_ratio(), knn.get_compression_ratio(), accuracy, accuracy - full_accuracy, time, train_time));
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+		}
+		
+		private static double accuracy(int[] predicted, Dataset test_dataset) {
+			int correct = 0;
+			
+			for (int row = 0; row < predicted.length; row++)
+				if (predicted[row] == test_dataset.get_label(row))
+					correct++;
+			
+			return (double) correct / predicted.length;
+		}
+		
+		private static Dataset grid_dataset(int n, double shift) {
+			// the n x n points of an integer grid moved by shift ( every other column vertically too ), 3 labels:
+			// most of the distances are equal, to check the ties
+			Dataset dataset = new Dataset();
+			
+			for (int x = 0; x < n; x++)
+				for (int y = 0; y < n; y++) {
+					double[] values = {x + shift, y + (x % 2) * shift};
+					Image img = new Image(new Representation(values, "GRID"), (7 * x + 3 * y) % 3 + 1);
+					dataset.add_datapoint(img, img.get_label());
+				}
+			
+			return dataset;
+		}
+		
+		private static Dataset noisy_copies(Dataset dataset, int copies, double noise, Random random) {
+			// bigger dataset for the benchmarks: copies of each vector, each value multiplied by ( 1 + N(0, noise) )
+			Dataset noisy_dataset = new Dataset();
+			
+			for (int copy = 0; copy < copies; copy++)
+				for (int row = 0; row < dataset.size(); row++) {
+					double[] values = dataset.get_image(row).get_values().clone();
+					
+					for (int i = 0; i < values.length; i++)
+						values[i] *= 1 + random.nextGaussian() * noise;
+					
+					Image img = new Image(new Representation(values, dataset.get_representation_type()), dataset.get_label(row));
+					noisy_dataset.add_datapoint(img, img.get_label());
+				}
+			
+			return noisy_dataset;
+		}
+		
+		public static void fast_parser_check() {
+			/*
+			 * Checks that RepresentationParser ( used when reading the representation files ) gives
+			 * bit-identical values to Double.parseDouble, on all the files of the project.
+			 */
+			
+			long checked = 0, mismatches = 0;
+			
+			for (String rep : new String[] {"E34", "GFD", "SA", "F0"}) {
+				try (Stream<Path> files = Files.list(Paths.get("project_files", rep))) {
+					for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+						double[] fast = RepresentationParser.read(file.toString());
+						List<String> lines = Files.readAllLines(file);
+						
+						if (fast.length != lines.size()) {
+							System.err.println(file + " : got " + fast.length + " values for " + lines.size() + " lines");
+							mismatches++;
+							continue;
+						}
+						
+						for (int i = 0; i < fast.length; i++, checked++)
+							if (Double.doubleToRawLongBits(fast[i]) != Double.doubleToRawLongBits(Double.parseDouble(lines.get(i)))) {
+								System.err.println(file + " line " + (i + 1) + " : " + lines.get(i) + " parsed as " + fast[i]);
+								mismatches++;
+							}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			
+			System.out.println(checked + " values checked, " + mismatches + " mismatches");
+		}
 	}
 	
 	private static void demo() {
@@ -440,7 +1272,7 @@ public class Main {
 		Double[] d3 = {20.455, 34.4};
 		Image img3 = new Image(new Representation(d3, "img1"));
 		img3.set_label(2);
-
+		
 		Double[] d4 = {14.56, 13.4};
 		Image img4 = new Image(new Representation(d4, "img1"));
 		img4.set_label(2);
@@ -448,7 +1280,7 @@ public class Main {
 		Double[] d5 = {200.455, 34.4};
 		Image img5 = new Image(new Representation(d5, "img1"));
 		img5.set_label(3);
-
+		
 		Double[] d6 = {180.2, 13.4};
 		Image img6 = new Image(new Representation(d6, "img1"));
 		img6.set_label(3);